@@ -0,0 +1,97 @@
+package josh.slackgames.minesweeper.objects;
+
+import josh.slackgames.minesweeper.MinesweeperService;
+
+/**
+ * Boards shared by the benchmarks: the three levels, and a large custom board
+ */
+final class Boards {
+
+    static final String CUSTOM = "CUSTOM";
+
+    private static final int CUSTOM_SIDE = 1000;
+    private static final long SEED = 42;
+
+    final int width, height, numMines;
+
+
+    /**
+     * Looks up a board size
+     * @param name a level name, or CUSTOM
+     */
+    Boards(String name) {
+        if(CUSTOM.equals(name)) {
+            width = CUSTOM_SIDE;
+            height = CUSTOM_SIDE;
+            numMines = CUSTOM_SIDE * CUSTOM_SIDE * 15 / 100;
+        }
+        else {
+            MinesweeperService.Level level = MinesweeperService.Level.valueOf(name);
+            width = level.getWidth();
+            height = level.getHeight();
+            numMines = level.getNumMines();
+        }
+    }
+
+
+    /**
+     * A new game with nothing laid yet; the same seed every time
+     * @return Game
+     */
+    Game empty() {
+        return new Game(null, width, height, numMines, SEED);
+    }
+
+
+    /**
+     * A new game with its mines laid around a first click in the middle, nothing revealed.
+     * Always the same field, so cells found on one copy behave the same on the next.
+     * @return Game
+     */
+    Game laid() {
+        Game game = empty();
+        game.generateField(width / 2, height / 2);
+        game.firstClick = game.index(width / 2, height / 2);
+        return game;
+    }
+
+
+    /**
+     * Finds a hidden cell whose reveal uncovers only itself, or a flood
+     * @param flood true for a blank cell that starts a flood
+     * @return row-major cell index
+     */
+    int findCell(boolean flood) {
+        for(int i = 0; i < width * height; i++) {
+            Game game = laid();
+            Integer result = game.revealTile(i % width, i / width);
+
+            if(result != null && result == -4) {
+                continue;
+            }
+
+            if((game.getLastRevealed().length > 1) == flood) {
+                return i;
+            }
+        }
+
+        throw new IllegalStateException("No such cell on a " + width + "x" + height + " board");
+    }
+
+
+    /**
+     * A game part way through: one flood revealed and a few flags placed
+     * @return Game
+     */
+    Game played() {
+        int flood = findCell(true);
+        Game game = laid();
+        game.revealTile(flood % width, flood / width);
+
+        for(int i = 0; i < width * height && i < 50; i += 7) {
+            game.flagTile(i % width, i / width);
+        }
+
+        return game;
+    }
+}
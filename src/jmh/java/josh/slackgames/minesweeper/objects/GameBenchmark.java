@@ -0,0 +1,88 @@
+package josh.slackgames.minesweeper.objects;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the Game engine, on each level and a 1000x1000 custom board.
+ *
+ * Reveals change the board, so each one lays the same field again first; subtract
+ * generateField from their time and bytes per op to get the reveal alone. Per-invocation
+ * setup would hide the copy from the timer but not from the gc profiler.
+ * GenerateFieldBenchmark compares field generation with the original implementation. Run
+ * through the jmh profile, see pom.xml.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GameBenchmark {
+
+    @State(Scope.Thread)
+    public static class Sized {
+        @Param({ "BEGINNER", "INTERMEDIATE", "EXPERT", Boards.CUSTOM })
+        public String board;
+
+        Boards boards;
+        Game played;
+        int numbered;
+        int flood;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            boards = new Boards(board);
+            played = boards.played();
+            numbered = boards.findCell(false);
+            flood = boards.findCell(true);
+        }
+    }
+
+
+    /**
+     * Lays the mines of a new game; includes allocating its cells, as starting a game does
+     */
+    @Benchmark
+    public Game generateField(Sized board) {
+        return board.boards.laid();
+    }
+
+
+    @Benchmark
+    public Integer revealNumbered(Sized board) {
+        return board.boards.laid().revealTile(board.numbered % board.boards.width, board.numbered / board.boards.width);
+    }
+
+
+    @Benchmark
+    public Integer revealFlood(Sized board) {
+        return board.boards.laid().revealTile(board.flood % board.boards.width, board.flood / board.boards.width);
+    }
+
+
+    /**
+     * Toggles a flag; alternate calls place and remove it
+     */
+    @Benchmark
+    public Integer flagTile(Sized board) {
+        return board.played.flagTile(board.numbered % board.boards.width, board.numbered / board.boards.width);
+    }
+
+
+    @Benchmark
+    public Board getBoard(Sized board) {
+        return board.played.getBoard();
+    }
+}
@@ -0,0 +1,97 @@
+package josh.slackgames.minesweeper.objects;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the original mine placement and hypot-based neighbour counting with Game.generateField.
+ * The original is quadratic in board size, so this stays with the levels.
+ * @author Josh Ellis - neuroclast@gmail.com
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GenerateFieldBenchmark {
+
+    @Param({ "BEGINNER", "INTERMEDIATE", "EXPERT" })
+    public String board;
+
+    private Boards boards;
+
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        boards = new Boards(board);
+    }
+
+
+    @Benchmark
+    public Game current() {
+        Game game = boards.empty();
+        game.generateField(boards.width / 2, boards.height / 2);
+        return game;
+    }
+
+
+    @Benchmark
+    public int[][] legacy() {
+        return legacyGenerate(boards.width, boards.height, boards.numMines, boards.width / 2, boards.height / 2);
+    }
+
+
+    /**
+     * Field generation as it was before bit-packing and Floyd sampling
+     */
+    private static int[][] legacyGenerate(int width, int height, int numMines, int clickX, int clickY) {
+        int[][] field = new int[width][height];
+        List<int[]> mines = new ArrayList<>();
+
+        for(int i = 0; i < numMines ; i++) {
+            Random rand = new Random();
+            int x = rand.nextInt(width);
+            int y = rand.nextInt(height);
+
+            if(field[x][y] != 0 || (x == clickX && y == clickY)) {
+                i--;
+                continue;
+            }
+
+            field[x][y] = 10;
+            mines.add(new int[] { x, y });
+        }
+
+        for(int y = 0; y < height; y++) {
+            for(int x = 0; x < width; x++) {
+                if(field[x][y] == 10) {
+                    continue;
+                }
+
+                for(int[] p : mines) {
+                    if(Math.hypot(x - p[0], y - p[1]) < 2) {
+                        field[x][y]++;
+                    }
+                }
+            }
+        }
+
+        return field;
+    }
+}
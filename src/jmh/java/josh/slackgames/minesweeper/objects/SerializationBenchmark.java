@@ -0,0 +1,59 @@
+package josh.slackgames.minesweeper.objects;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import josh.slackgames.WSMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Jackson serialization of the board messages sent to clients: a whole board, as sent on
+ * join and reset, and a one-flood delta, as sent after a click
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializationBenchmark {
+
+    @Param({ "BEGINNER", "INTERMEDIATE", "EXPERT", Boards.CUSTOM })
+    public String board;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private WSMessage full;
+    private WSMessage delta;
+
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Game game = new Boards(board).played();
+        full = new WSMessage("initial", null, game.getBoard());
+        delta = new WSMessage("delta", null, game.getBoard(game.getLastRevealed()));
+    }
+
+
+    @Benchmark
+    public byte[] fullBoard() throws JsonProcessingException {
+        return mapper.writeValueAsBytes(full);
+    }
+
+
+    @Benchmark
+    public byte[] delta() throws JsonProcessingException {
+        return mapper.writeValueAsBytes(delta);
+    }
+}
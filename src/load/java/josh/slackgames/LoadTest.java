@@ -0,0 +1,439 @@
+package josh.slackgames;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import josh.slackgames.minesweeper.MinesweeperService;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.messaging.simp.stomp.StompFrameHandler;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandlerAdapter;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+import org.springframework.web.socket.sockjs.client.SockJsClient;
+import org.springframework.web.socket.sockjs.client.WebSocketTransport;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.Type;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Offline load test: starts the app on a free local port, connects SockJS/STOMP sessions to
+ * /ws, starts a game per channel over the REST API, then plays them at a fixed click rate and
+ * reports throughput, broadcast fan-out latency, and heap and GC activity.
+ * Clicks go to the same destinations the web client uses, e.g. /minesweeper/click/...
+ *
+ * Players on a channel reveal its hidden cells in random order, flag some of them, and reset
+ * the game once it is won or lost. Fan-out latency runs from sending a click to each
+ * subscriber receiving the frame that carries it. Clients and server share this JVM, so the
+ * heap and GC figures include both, and CPU spent parsing frames here is CPU the server
+ * didn't get.
+ *
+ * Run through the load profile, see pom.xml. Options, with their defaults:
+ * --channels=200 --sessions=2000 --rate=500 (clicks per second) --duration=30 --warmup=5
+ * (seconds) --level=EXPERT. Any --minesweeper.*, --server.* or --spring.* option is passed
+ * to the app; admission control is off unless given.
+ */
+public class LoadTest {
+
+    private static final int FLAG_PERCENT = 10;
+    private static final long TICK_MS = 10;
+    private static final long PENDING_TTL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final Map<String, String> options;
+    private final MinesweeperService.Level level;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final List<Channel> channels = new ArrayList<>();
+
+    // send time of each click in flight, by channel/user/x/y
+    private final Map<String, Long> pending = new ConcurrentHashMap<>();
+
+    private final Timer fanOut;
+    private final AtomicLong clicksSent = new AtomicLong();
+    private final AtomicLong resetsSent = new AtomicLong();
+    private final AtomicLong framesReceived = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private volatile boolean measuring = false;
+
+
+    private LoadTest(Map<String, String> options) {
+        this.options = options;
+        this.level = MinesweeperService.Level.valueOf(option("level", "EXPERT"));
+        this.fanOut = Timer.builder("fanout")
+                .publishPercentiles(0.5, 0.9, 0.99, 0.999)
+                .distributionStatisticExpiry(Duration.ofDays(1))
+                .register(new SimpleMeterRegistry());
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        List<String> appArgs = new ArrayList<>();
+        appArgs.add("--server.port=0");
+        appArgs.add("--minesweeper.throttle.user-rate=0");
+        appArgs.add("--minesweeper.throttle.channel-rate=0");
+
+        for(String arg : args) {
+            if(arg.startsWith("--minesweeper.") || arg.startsWith("--server.") || arg.startsWith("--spring.")) {
+                appArgs.add(arg);
+            }
+            else if(arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+            else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+
+        // devtools is on the test classpath; its restarter would run main a second time
+        System.setProperty("spring.devtools.restart.enabled", "false");
+
+        ConfigurableApplicationContext app = new SpringApplicationBuilder(SlackGamesApplication.class)
+                .run(appArgs.toArray(new String[0]));
+
+        try {
+            new LoadTest(options).run(app);
+        }
+        finally {
+            app.close();
+        }
+
+        System.exit(0);
+    }
+
+
+    private void run(ConfigurableApplicationContext app) throws Exception {
+        int port = app.getEnvironment().getProperty("local.server.port", Integer.class);
+        int numChannels = Integer.parseInt(option("channels", "200"));
+        int numSessions = Integer.parseInt(option("sessions", "2000"));
+        double rate = Double.parseDouble(option("rate", "500"));
+        long duration = Long.parseLong(option("duration", "30"));
+        long warmup = Long.parseLong(option("warmup", "5"));
+        String base = "http://localhost:" + port;
+
+        RestTemplate rest = new RestTemplate();
+        for(int c = 0; c < numChannels; c++) {
+            Channel channel = new Channel("load-" + c, level.getWidth() * level.getHeight());
+            rest.postForEntity(base + "/api/v1/minesweeper/start-game?channelId={c}&level={l}", null, String.class,
+                    channel.id, level.name());
+            channels.add(channel);
+        }
+
+        System.out.printf("Connecting %d sessions to %d channels...%n", numSessions, numChannels);
+        WebSocketStompClient client = new WebSocketStompClient(
+                new SockJsClient(Collections.singletonList(new WebSocketTransport(new StandardWebSocketClient()))));
+        connect(client, base + "/ws", numSessions);
+
+        ScheduledExecutorService driver = Executors.newSingleThreadScheduledExecutor();
+        MeterRegistry serverMetrics = app.getBean(MeterRegistry.class);
+        double[] credit = new double[1];
+        double[] maxInboundQueue = new double[1];
+
+        driver.scheduleAtFixedRate(() -> {
+            credit[0] += rate * TICK_MS / 1000.0;
+            for(; credit[0] >= 1; credit[0]--) {
+                click(channels.get(ThreadLocalRandom.current().nextInt(channels.size())));
+            }
+
+            Gauge inbound = serverMetrics.find("minesweeper.stomp.queue").tag("channel", "inbound").gauge();
+            if(measuring && inbound != null) {
+                maxInboundQueue[0] = Math.max(maxInboundQueue[0], inbound.value());
+            }
+        }, 0, TICK_MS, TimeUnit.MILLISECONDS);
+
+        driver.scheduleAtFixedRate(this::prunePending, 1, 1, TimeUnit.SECONDS);
+
+        System.out.printf("Warming up for %ds at %.0f clicks/s...%n", warmup, rate);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+
+        Heap before = new Heap();
+        long start = System.nanoTime();
+        measuring = true;
+
+        System.out.printf("Measuring for %ds...%n", duration);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+
+        measuring = false;
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Heap after = new Heap();
+
+        driver.shutdownNow();
+        report(seconds, before, after, serverMetrics, maxInboundQueue[0]);
+
+        for(Channel channel : channels) {
+            channel.sessions.forEach(StompSession::disconnect);
+        }
+        client.stop();
+    }
+
+
+    /**
+     * Connects the sessions, a bounded number at a time, spreading them over the channels
+     * @param client STOMP client
+     * @param url SockJS endpoint
+     * @param numSessions number of sessions
+     */
+    private void connect(WebSocketStompClient client, String url, int numSessions) throws InterruptedException {
+        Semaphore inFlight = new Semaphore(100);
+
+        for(int s = 0; s < numSessions; s++) {
+            Channel channel = channels.get(s % channels.size());
+            String userId = "u" + s;
+            inFlight.acquire();
+
+            client.connect(url, new StompSessionHandlerAdapter() {
+                @Override
+                public void afterConnected(StompSession session, StompHeaders connectedHeaders) {
+                    session.subscribe("/topic/minesweeper/" + channel.id, new StompFrameHandler() {
+                        @Override
+                        public Type getPayloadType(StompHeaders headers) {
+                            return byte[].class;
+                        }
+
+                        @Override
+                        public void handleFrame(StompHeaders headers, Object payload) {
+                            received(channel, (byte[]) payload);
+                        }
+                    });
+                    session.send("/minesweeper/load/" + channel.id + "/" + userId, new byte[0]);
+
+                    synchronized (channel) {
+                        channel.sessions.add(session);
+                        channel.users.add(userId);
+                    }
+                    inFlight.release();
+                }
+
+                @Override
+                public void handleTransportError(StompSession session, Throwable exception) {
+                    if(!session.isConnected()) {
+                        System.err.println("Session failed to connect: " + exception);
+                        inFlight.release();
+                    }
+                }
+            });
+        }
+
+        inFlight.acquire(100);
+    }
+
+
+    /**
+     * Sends the next click on a channel from one of its players, or a reset once the game is over
+     * @param channel channel to play
+     */
+    private void click(Channel channel) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        StompSession session;
+        String userId;
+        String destination;
+        String key = null;
+
+        synchronized (channel) {
+            if(channel.sessions.isEmpty()) {
+                return;
+            }
+
+            int player = random.nextInt(channel.sessions.size());
+            session = channel.sessions.get(player);
+            userId = channel.users.get(player);
+
+            if(channel.over || channel.next == channel.order.length) {
+                destination = "/minesweeper/reset/" + channel.id + "/" + userId;
+                channel.shuffle();
+                if(measuring) {
+                    resetsSent.incrementAndGet();
+                }
+            }
+            else {
+                int cell = channel.order[channel.next++];
+                int x = cell % level.getWidth();
+                int y = cell / level.getWidth();
+                int type = random.nextInt(100) < FLAG_PERCENT ? 2 : 1;
+
+                destination = "/minesweeper/click/" + channel.id + "/" + userId + "/" + type + "/" + x + "/" + y;
+                key = channel.id + "/" + userId + "/" + x + "/" + y;
+                if(measuring) {
+                    clicksSent.incrementAndGet();
+                }
+            }
+        }
+
+        if(key != null) {
+            pending.put(key, System.nanoTime());
+        }
+
+        session.send(destination, new byte[0]);
+    }
+
+
+    /**
+     * Records the fan-out latency of each click a frame carries
+     * @param channel channel the frame was published to
+     * @param payload frame body
+     */
+    private void received(Channel channel, byte[] payload) {
+        long now = System.nanoTime();
+
+        if(measuring) {
+            framesReceived.incrementAndGet();
+            bytesReceived.addAndGet(payload.length);
+        }
+
+        try {
+            JsonNode frame = mapper.readTree(payload);
+
+            // the driver resets the game on its next turn
+            if("loss".equals(frame.path("type").asText()) || "win".equals(frame.path("message").asText())) {
+                channel.over = true;
+            }
+
+            if(!measuring) {
+                return;
+            }
+
+            for(JsonNode event : frame.path("events")) {
+                if(!event.hasNonNull("x")) {
+                    continue;
+                }
+
+                Long sent = pending.get(channel.id + "/" + event.path("user").asText() + "/"
+                        + event.path("x").asInt() + "/" + event.path("y").asInt());
+                if(sent != null) {
+                    fanOut.record(now - sent, TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+        catch(Exception e) {
+            System.err.println("Unreadable frame: " + e);
+        }
+    }
+
+
+    /**
+     * Forgets clicks old enough that every subscriber has had their frame, or that changed nothing
+     */
+    private void prunePending() {
+        long cutoff = System.nanoTime() - PENDING_TTL_NANOS;
+        pending.values().removeIf(sent -> sent < cutoff);
+    }
+
+
+    private void report(double seconds, Heap before, Heap after, MeterRegistry serverMetrics, double maxInboundQueue) {
+        HistogramSnapshot latency = fanOut.takeSnapshot();
+
+        System.out.println();
+        System.out.printf("channels %d, level %s, %.1fs measured%n", channels.size(), level, seconds);
+        System.out.printf("clicks sent       %10.1f /s  (%d, plus %d resets)%n", clicksSent.get() / seconds, clicksSent.get(), resetsSent.get());
+        System.out.printf("frames received   %10.1f /s  (%.1f MB/s)%n", framesReceived.get() / seconds, bytesReceived.get() / seconds / 1e6);
+        System.out.printf("fan-out deliveries %9d%n", latency.count());
+        for(ValueAtPercentile p : latency.percentileValues()) {
+            System.out.printf("fan-out p%-6s   %10.2f ms%n", p.percentile() * 100, p.value(TimeUnit.MILLISECONDS));
+        }
+        System.out.printf("fan-out max       %10.2f ms%n", latency.max(TimeUnit.MILLISECONDS));
+
+        long applied = 0;
+        double appliedNanos = 0;
+        for(Timer timer : serverMetrics.find("minesweeper.click").timers()) {
+            applied += timer.count();
+            appliedNanos += timer.totalTime(TimeUnit.NANOSECONDS);
+        }
+        System.out.printf("server click apply %9.0f ns mean over %d clicks since startup%n", applied == 0 ? 0 : appliedNanos / applied, applied);
+        System.out.printf("inbound queue max %10.0f%n", maxInboundQueue);
+
+        System.out.printf("heap used         %10.1f MB -> %.1f MB (peak %.1f MB)%n", before.used / 1e6, after.used / 1e6, after.peak / 1e6);
+        for(Map.Entry<String, long[]> gc : after.collections.entrySet()) {
+            long[] start = before.collections.getOrDefault(gc.getKey(), new long[2]);
+            System.out.printf("gc %-22s %5d collections, %6d ms%n", gc.getKey(), gc.getValue()[0] - start[0], gc.getValue()[1] - start[1]);
+        }
+    }
+
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+
+    /**
+     * A channel's players and the order they reveal its cells in; guarded by its own monitor
+     */
+    private static final class Channel {
+        private final String id;
+        private final int[] order;
+        private final List<StompSession> sessions = new ArrayList<>();
+        private final List<String> users = new ArrayList<>();
+        private int next;
+        private volatile boolean over;
+
+        private Channel(String id, int cells) {
+            this.id = id;
+            this.order = new int[cells];
+            for(int i = 0; i < cells; i++) {
+                order[i] = i;
+            }
+            shuffle();
+        }
+
+        private void shuffle() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for(int i = order.length - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int t = order[i];
+                order[i] = order[j];
+                order[j] = t;
+            }
+            next = 0;
+            over = false;
+        }
+    }
+
+
+    /**
+     * Heap in use and collector totals at one point in time
+     */
+    private static final class Heap {
+        private final long used;
+        private final long peak;
+        private final Map<String, long[]> collections = new HashMap<>();
+
+        private Heap() {
+            long used = 0;
+            long peak = 0;
+            for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if(pool.getType() == MemoryType.HEAP) {
+                    used += pool.getUsage().getUsed();
+                    peak += pool.getPeakUsage().getUsed();
+                }
+            }
+            this.used = used;
+            this.peak = peak;
+
+            for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                collections.put(gc.getName(), new long[] { gc.getCollectionCount(), gc.getCollectionTime() });
+            }
+        }
+    }
+}
@@ -1,18 +1,38 @@
 package josh.slackgames;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
+
 /**
  * Web socket message container
+ *
+ * Minesweeper types: "initial" carries the full board on joins and resets, "delta" carries
+ * only the tiles changed by one or more clicks (message "win" if they won the game), plus
+ * "loss", "log" and "error". Channel messages carry the activity since the last one as a list
+ * of LogEvents in events; "log" is sent when there is activity but no board change. On custom
+ * boards, "viewport" carries the tiles a moved viewport newly covers (message "x,y,width,height"
+ * of the snapped area), and board messages only hold tiles inside the receiving session's
+ * viewport. Sessions that connect with board-encoding:packed get boards as a PackedBoard.
  * @author Josh Ellis - neuroclast@gmail.com
  */
 public final class WSMessage {
     private final String type;
     private final String message;
     private final Object contents;
+    // left out of messages without activity rather than sent as null
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private final List<?> events;
 
-    public WSMessage(String type, String message, Object contents) {
+    public WSMessage(String type, String message, Object contents, List<?> events) {
         this.type = type;
         this.message = message;
         this.contents = contents;
+        this.events = events;
+    }
+
+    public WSMessage(String type, String message, Object contents) {
+        this(type, message, contents, null);
     }
 
     public WSMessage(String type, String message) {
@@ -30,4 +50,8 @@ public final class WSMessage {
     public Object getContents() {
         return contents;
     }
+
+    public List<?> getEvents() {
+        return events;
+    }
 }
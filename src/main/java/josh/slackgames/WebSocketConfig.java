@@ -1,10 +1,22 @@
 package josh.slackgames;
 
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import josh.slackgames.minesweeper.OutboundMetrics;
+import josh.slackgames.minesweeper.WireEncoding;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.http.server.ServerHttpRequest;
 import org.springframework.http.server.ServerHttpResponse;
 import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.messaging.simp.config.ChannelRegistration;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
+import org.springframework.messaging.simp.config.StompBrokerRelayRegistration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.web.socket.WebSocketHandler;
 import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
 import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
@@ -16,14 +28,114 @@ import java.util.Map;
 
 /**
  * Configuration for Minesweeper websockets
+ *
+ * minesweeper.broker.mode=simple (the default) keeps subscriptions and fan-out in this process.
+ * minesweeper.broker.mode=relay forwards them to an external STOMP broker such as ActiveMQ or
+ * RabbitMQ, so several instances behind a load balancer share one set of topics. Sessions are
+ * still bound to the instance they connected to, and user destinations resolve across
+ * instances through the broker.
  * @author Josh Ellis - neuroclast@gmail.com
  */
 @Configuration
 @EnableWebSocketMessageBroker
 public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
+
+    static final String RELAY = "relay";
+
+    @Autowired
+    private WireEncoding wireEncoding;
+
+    // lazy so the meter registry, whose binders include this class's queue gauges, isn't built while this is
+    @Lazy
+    @Autowired
+    private OutboundMetrics outboundMetrics;
+
+    @Value("${minesweeper.broker.mode:simple}")
+    private String brokerMode;
+
+    @Value("${minesweeper.broker.relay-host:localhost}")
+    private String relayHost;
+
+    @Value("${minesweeper.broker.relay-port:61613}")
+    private int relayPort;
+
+    @Value("${minesweeper.broker.login:guest}")
+    private String relayLogin;
+
+    @Value("${minesweeper.broker.passcode:guest}")
+    private String relayPasscode;
+
+    @Value("${minesweeper.broker.virtual-host:}")
+    private String relayVirtualHost;
+
+
+    /**
+     * Sets up the in-process broker, or the relay to an external one
+     * @param config broker registry
+     */
     @Override
     public void configureMessageBroker(MessageBrokerRegistry config) {
-        config.enableSimpleBroker("/topic", "/queue");
+        if(!RELAY.equalsIgnoreCase(brokerMode)) {
+            config.enableSimpleBroker("/topic", "/queue");
+            return;
+        }
+
+        StompBrokerRelayRegistration relay = config.enableStompBrokerRelay("/topic", "/queue")
+                .setRelayHost(relayHost)
+                .setRelayPort(relayPort)
+                .setClientLogin(relayLogin)
+                .setClientPasscode(relayPasscode)
+                .setSystemLogin(relayLogin)
+                .setSystemPasscode(relayPasscode)
+                // let another instance deliver to sessions it holds, and share who is connected where
+                .setUserDestinationBroadcast("/topic/unresolved-user-destination")
+                .setUserRegistryBroadcast("/topic/simp-user-registry");
+
+        if(!relayVirtualHost.isEmpty()) {
+            relay.setVirtualHost(relayVirtualHost);
+        }
+    }
+
+
+    /**
+     * Negotiates each session's board encoding on the way in
+     * @param registration inbound channel registration
+     */
+    @Override
+    public void configureClientInboundChannel(ChannelRegistration registration) {
+        registration.interceptors(wireEncoding);
+    }
+
+
+    /**
+     * Measures what is sent to clients on the way out
+     * @param registration outbound channel registration
+     */
+    @Override
+    public void configureClientOutboundChannel(ChannelRegistration registration) {
+        registration.interceptors(outboundMetrics);
+    }
+
+
+    /**
+     * Queue depths of the STOMP channel executors; a growing inbound queue means clicks are waiting for a thread
+     * @param inbound client inbound channel executor
+     * @param outbound client outbound channel executor
+     * @param broker broker channel executor
+     * @return MeterBinder
+     */
+    @Bean
+    public MeterBinder stompQueueMetrics(@Qualifier("clientInboundChannelExecutor") ThreadPoolTaskExecutor inbound,
+                                         @Qualifier("clientOutboundChannelExecutor") ThreadPoolTaskExecutor outbound,
+                                         @Qualifier("brokerChannelExecutor") ThreadPoolTaskExecutor broker) {
+        return registry -> {
+            Gauge.builder("minesweeper.stomp.queue", inbound, executor -> executor.getThreadPoolExecutor().getQueue().size())
+                    .description("Messages waiting for a STOMP channel thread").tag("channel", "inbound").register(registry);
+            Gauge.builder("minesweeper.stomp.queue", outbound, executor -> executor.getThreadPoolExecutor().getQueue().size())
+                    .description("Messages waiting for a STOMP channel thread").tag("channel", "outbound").register(registry);
+            Gauge.builder("minesweeper.stomp.queue", broker, executor -> executor.getThreadPoolExecutor().getQueue().size())
+                    .description("Messages waiting for a STOMP channel thread").tag("channel", "broker").register(registry);
+        };
     }
 
 
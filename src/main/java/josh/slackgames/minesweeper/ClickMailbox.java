@@ -0,0 +1,311 @@
+package josh.slackgames.minesweeper;
+
+import josh.slackgames.minesweeper.objects.Game;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Per-channel single-writer click processing, enabled with minesweeper.click-mode=mailbox.
+ *
+ * Clicks and resets are queued per channel and drained by at most one task at a time on a
+ * shared pool, so a channel's commands are applied strictly in arrival order. Each drain
+ * applies up to minesweeper.mailbox.max-batch commands and commits each run of clicks to
+ * the FrameBatcher as one unit. The drain takes the game's monitor once per run rather than once
+ * per click, which keeps joins from other threads consistent.
+ *
+ * Each channel keeps one mailbox. When its game goes away the queued commands are dropped,
+ * and the mailbox is retired only while no drain is scheduled, so two drains never run for
+ * one channel.
+ */
+@Component
+public class ClickMailbox {
+    private static final Logger LOG = LoggerFactory.getLogger(ClickMailbox.class);
+
+    static final int REVEAL = 1;
+    static final int FLAG = 2;
+    // only queued by submitReset, so no click type from a client can collide with it
+    private static final int RESET = -1;
+
+    private final MinesweeperService msService;
+    private final FrameBatcher frames;
+    private final boolean enabled;
+    private final int maxBatch;
+    private final ExecutorService executor;
+    private final Map<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+
+    @Autowired
+    public ClickMailbox(MinesweeperService msService,
+                        FrameBatcher frames,
+                        @Value("${minesweeper.click-mode:locked}") String clickMode,
+                        @Value("${minesweeper.mailbox.threads:0}") int threads,
+                        @Value("${minesweeper.mailbox.max-batch:64}") int maxBatch) {
+        this.msService = msService;
+        this.frames = frames;
+        this.enabled = "mailbox".equalsIgnoreCase(clickMode);
+        this.maxBatch = Math.max(1, maxBatch);
+        this.executor = enabled
+                ? Executors.newFixedThreadPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors())
+                : null;
+
+        msService.addRemovalListener(this::clear);
+    }
+
+
+    /**
+     * Checks if clicks should be routed through the mailbox
+     * @return boolean
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+
+    /**
+     * Queues a click for a channel; any type other than REVEAL or FLAG is dropped
+     * @param channelId Channel ID
+     * @param userId User ID
+     * @param type REVEAL or FLAG
+     * @param x x coordinate
+     * @param y y coordinate
+     */
+    void submitClick(String channelId, String userId, int type, int x, int y) {
+        if(type != REVEAL && type != FLAG) {
+            return;
+        }
+
+        submit(channelId, new Command(userId, type, x, y));
+    }
+
+
+    /**
+     * Queues a reset for a channel, ordered with its clicks
+     * @param channelId Channel ID
+     * @param userId User ID
+     */
+    void submitReset(String channelId, String userId) {
+        submit(channelId, new Command(userId, RESET, 0, 0));
+    }
+
+
+    /**
+     * Queues a command for a channel and schedules a drain if none is pending
+     * @param channelId Channel ID
+     * @param command command to apply
+     */
+    private void submit(String channelId, Command command) {
+        while(true) {
+            Mailbox mailbox = mailboxes.computeIfAbsent(channelId, Mailbox::new);
+
+            synchronized (mailbox) {
+                // lost a race with clear(); the next pass creates a fresh mailbox
+                if(mailbox.retired) {
+                    continue;
+                }
+
+                mailbox.queue.add(command);
+                mailbox.schedule();
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Drops a channel's queued commands once its game has gone, retiring the mailbox if no drain is scheduled
+     * @param channelId Channel ID
+     */
+    private void clear(String channelId) {
+        Mailbox mailbox = mailboxes.get(channelId);
+        if(mailbox == null) {
+            return;
+        }
+
+        synchronized (mailbox) {
+            mailbox.queue.clear();
+
+            if(!mailbox.scheduled.get()) {
+                mailbox.retired = true;
+                mailboxes.remove(channelId, mailbox);
+            }
+        }
+    }
+
+
+    @PreDestroy
+    public void shutdown() {
+        if(executor != null) {
+            executor.shutdown();
+        }
+    }
+
+
+    /**
+     * Applies up to maxBatch queued commands for a channel
+     * @param mailbox channel mailbox
+     */
+    private void drain(Mailbox mailbox) {
+        int processed = 0;
+
+        while(processed < maxBatch) {
+            Command next = mailbox.queue.peek();
+            if(next == null) {
+                return;
+            }
+
+            if(next.type == RESET) {
+                mailbox.queue.poll();
+                processed++;
+                reset(mailbox.channelId, next.userId);
+                continue;
+            }
+
+            Game game = msService.getGame(mailbox.channelId);
+            if(game == null) {
+                mailbox.queue.clear();
+                return;
+            }
+
+            processed += applyClicks(game, mailbox, maxBatch - processed);
+        }
+    }
+
+
+    /**
+     * Applies consecutive clicks up to the next reset and commits them as one frame
+     * @param game Game object
+     * @param mailbox channel mailbox
+     * @param limit maximum number of clicks to apply
+     * @return number of commands consumed
+     */
+    private int applyClicks(Game game, Mailbox mailbox, int limit) {
+        int consumed = 0;
+
+        synchronized (game) {
+            // the game was reset, ended or handed off while we waited; the drain fetches it again
+            if(!msService.isCurrent(mailbox.channelId, game)) {
+                return 0;
+            }
+
+            while(consumed < limit) {
+                Command click = mailbox.queue.peek();
+                if(click == null || click.type == RESET) {
+                    break;
+                }
+
+                mailbox.queue.poll();
+                consumed++;
+
+                if(!game.validPoint(click.x, click.y)) {
+                    LOG.debug("Ignoring out of bounds click {},{} on {}", click.x, click.y, mailbox.channelId);
+                    continue;
+                }
+
+                Integer clickResult;
+
+                if(click.type == REVEAL) {
+                    clickResult = msService.revealTile(mailbox.channelId, game, click.x, click.y);
+                }
+                else if(click.type == FLAG) {
+                    clickResult = msService.flagTile(mailbox.channelId, game, click.x, click.y);
+                }
+                else {
+                    continue;
+                }
+
+                frames.click(mailbox.channelId, game, click.userId, click.type, click.x, click.y, clickResult);
+
+                if(clickResult != null && clickResult == -4) {
+                    break;
+                }
+            }
+
+            frames.commit(mailbox.channelId);
+        }
+
+        return consumed;
+    }
+
+
+    /**
+     * Resets a channel's game and publishes the new board
+     * @param channelId Channel ID
+     * @param userId User ID
+     */
+    private void reset(String channelId, String userId) {
+        Game game = msService.resetGame(channelId);
+
+        if(game == null) {
+            return;
+        }
+
+        synchronized (game) {
+            frames.reset(channelId, game, userId);
+            frames.commit(channelId);
+        }
+    }
+
+
+    private static final class Command {
+        private final String userId;
+        private final int type;
+        private final int x;
+        private final int y;
+
+        private Command(String userId, int type, int x, int y) {
+            this.userId = userId;
+            this.type = type;
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+
+    private final class Mailbox implements Runnable {
+        private final String channelId;
+        private final Queue<Command> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        // set under the mailbox's monitor once it has left the map; nothing is queued on it after
+        private boolean retired = false;
+
+        private Mailbox(String channelId) {
+            this.channelId = channelId;
+        }
+
+        private void schedule() {
+            if(scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                drain(this);
+            }
+            catch(RuntimeException e) {
+                LOG.error("Failed to drain clicks for channel {}", channelId, e);
+            }
+            finally {
+                scheduled.set(false);
+
+                // pick up anything queued after the last poll
+                if(!queue.isEmpty()) {
+                    schedule();
+                }
+            }
+        }
+    }
+}
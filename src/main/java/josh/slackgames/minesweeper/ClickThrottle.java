@@ -0,0 +1,144 @@
+package josh.slackgames.minesweeper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token-bucket admission control for clicks and resets.
+ *
+ * Each user and each channel has a bucket that refills at a steady rate up to a burst size;
+ * a command takes one token from both and is turned away when either is empty, so one
+ * client spamming frames can't tie up the inbound executor for every other channel. A rate
+ * of 0 turns that bucket off. Buckets are kept by the node the client is connected to, so in
+ * a cluster the channel rate applies per node.
+ */
+@Component
+public class ClickThrottle {
+    private static final Logger LOG = LoggerFactory.getLogger(ClickThrottle.class);
+
+    private final double userRate;
+    private final double userBurst;
+    private final double channelRate;
+    private final double channelBurst;
+    private final Map<String, Bucket> users = new ConcurrentHashMap<>();
+    private final Map<String, Bucket> channels = new ConcurrentHashMap<>();
+    private final AtomicLong throttled = new AtomicLong();
+
+
+    @Autowired
+    public ClickThrottle(MinesweeperService msService,
+                         @Value("${minesweeper.throttle.user-rate:10}") double userRate,
+                         @Value("${minesweeper.throttle.user-burst:20}") double userBurst,
+                         @Value("${minesweeper.throttle.channel-rate:100}") double channelRate,
+                         @Value("${minesweeper.throttle.channel-burst:200}") double channelBurst) {
+        this.userRate = Math.max(0, userRate);
+        this.userBurst = Math.max(1, userBurst);
+        this.channelRate = Math.max(0, channelRate);
+        this.channelBurst = Math.max(1, channelBurst);
+
+        msService.addRemovalListener(channels::remove);
+    }
+
+
+    /**
+     * Takes a token for a command from the user's and the channel's buckets
+     * @param channelId Channel ID
+     * @param userId User ID
+     * @return true if the command may go ahead, false if it should be turned away
+     */
+    boolean admit(String channelId, String userId) {
+        long now = System.nanoTime();
+
+        Bucket user = userRate > 0 ? users.computeIfAbsent(userId, id -> new Bucket(userBurst, now)) : null;
+        if(user != null && !user.take(userRate, userBurst, now)) {
+            throttled.incrementAndGet();
+            return false;
+        }
+
+        Bucket channel = channelRate > 0 ? channels.computeIfAbsent(channelId, id -> new Bucket(channelBurst, now)) : null;
+        if(channel != null && !channel.take(channelRate, channelBurst, now)) {
+            // the user's token wasn't spent on anything
+            if(user != null) {
+                user.refund(userBurst);
+            }
+            throttled.incrementAndGet();
+            return false;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Number of commands turned away since startup
+     * @return long
+     */
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+
+    /**
+     * Drops buckets that have refilled, so users who stopped clicking don't take up memory
+     */
+    @Scheduled(fixedDelayString = "${minesweeper.throttle.sweep-ms:60000}")
+    public void sweep() {
+        long now = System.nanoTime();
+        int before = users.size() + channels.size();
+
+        users.values().removeIf(bucket -> bucket.isFull(userRate, userBurst, now));
+        channels.values().removeIf(bucket -> bucket.isFull(channelRate, channelBurst, now));
+
+        LOG.debug("Swept {} idle throttle buckets", before - users.size() - channels.size());
+    }
+
+
+    /**
+     * Tokens left and when they were last topped up; guarded by its own monitor
+     */
+    private static final class Bucket {
+        private double tokens;
+        private long refilledAt;
+
+        private Bucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.refilledAt = now;
+        }
+
+        private synchronized boolean take(double rate, double burst, long now) {
+            refill(rate, burst, now);
+
+            if(tokens < 1) {
+                return false;
+            }
+
+            tokens--;
+            return true;
+        }
+
+        private synchronized void refund(double burst) {
+            tokens = Math.min(burst, tokens + 1);
+        }
+
+        private synchronized boolean isFull(double rate, double burst, long now) {
+            refill(rate, burst, now);
+            return tokens >= burst;
+        }
+
+        private void refill(double rate, double burst, long now) {
+            if(now > refilledAt) {
+                tokens = Math.min(burst, tokens + rate * (now - refilledAt) / TimeUnit.SECONDS.toNanos(1));
+                refilledAt = now;
+            }
+        }
+    }
+}
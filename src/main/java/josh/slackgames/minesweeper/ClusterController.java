@@ -0,0 +1,215 @@
+package josh.slackgames.minesweeper;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+/**
+ * Requests between cluster nodes: forwarded calls for channels this node owns, and game handoffs.
+ * Forwarded calls are always handled here, even if this node's view of the ring disagrees.
+ */
+@RestController
+@RequestMapping(ClusterNodes.PATH)
+public class ClusterController {
+
+    private final MinesweeperController games;
+    private final MinesweeperService msService;
+    private final ViewportRegistry viewports;
+    private final WireEncoding wire;
+    private final ClusterNodes cluster;
+
+
+    @Autowired
+    public ClusterController(MinesweeperController games,
+                             MinesweeperService msService,
+                             ViewportRegistry viewports,
+                             WireEncoding wire,
+                             ClusterNodes cluster) {
+        this.games = games;
+        this.msService = msService;
+        this.viewports = viewports;
+        this.wire = wire;
+        this.cluster = cluster;
+    }
+
+
+    /**
+     * Liveness check used to build the ring; a node shutting down stops answering
+     * @param secret shared cluster secret
+     * @return ResponseEntity
+     */
+    @GetMapping("/ping")
+    public ResponseEntity ping(@RequestHeader(value = ClusterNodes.SECRET_HEADER, required = false) String secret) {
+        if(!cluster.authorized(secret)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        }
+
+        if(cluster.isLeaving()) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+
+        return ResponseEntity.ok("ok");
+    }
+
+
+    @PostMapping("/start-game")
+    public ResponseEntity startGame(@RequestHeader(value = ClusterNodes.SECRET_HEADER, required = false) String secret,
+                                    @RequestParam String channelId,
+                                    @RequestParam(required = false, defaultValue = "BEGINNER") String level,
+                                    @RequestParam(required = false) Integer width,
+                                    @RequestParam(required = false) Integer height,
+                                    @RequestParam(required = false) Integer mines) {
+        if(!cluster.authorized(secret)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        }
+
+        return games.start(channelId, level, width, height, mines);
+    }
+
+
+    @PostMapping("/load")
+    public ResponseEntity load(@RequestHeader(value = ClusterNodes.SECRET_HEADER, required = false) String secret,
+                               @RequestParam String channelId,
+                               @RequestParam String userId,
+                               @RequestParam String sessionId,
+                               @RequestParam boolean packed) {
+        if(!cluster.authorized(secret)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        }
+
+        wire.setPacked(sessionId, packed);
+        games.load(channelId, userId, sessionId);
+
+        return ResponseEntity.ok().build();
+    }
+
+
+    @PostMapping("/viewport")
+    public ResponseEntity viewport(@RequestHeader(value = ClusterNodes.SECRET_HEADER, required = false) String secret,
+                                   @RequestParam String channelId,
+                                   @RequestParam String sessionId,
+                                   @RequestParam boolean packed,
+                                   @RequestParam int x,
+                                   @RequestParam int y,
+                                   @RequestParam int width,
+                                   @RequestParam int height) {
+        if(!cluster.authorized(secret)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        }
+
+        wire.setPacked(sessionId, packed);
+        games.moveViewport(channelId, sessionId, x, y, width, height);
+
+        return ResponseEntity.ok().build();
+    }
+
+
+    @PostMapping("/disconnect")
+    public ResponseEntity disconnect(@RequestHeader(value = ClusterNodes.SECRET_HEADER, required = false) String secret,
+                                     @RequestParam String channelId,
+                                     @RequestParam String sessionId) {
+        if(!cluster.authorized(secret)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        }
+
+        viewports.leave(channelId, sessionId);
+        wire.setPacked(sessionId, false);
+
+        return ResponseEntity.ok().build();
+    }
+
+
+    @PostMapping("/reset")
+    public ResponseEntity reset(@RequestHeader(value = ClusterNodes.SECRET_HEADER, required = false) String secret,
+                                @RequestParam String channelId,
+                                @RequestParam String userId) {
+        if(!cluster.authorized(secret)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        }
+
+        games.reset(channelId, userId);
+
+        return ResponseEntity.ok().build();
+    }
+
+
+    @PostMapping("/click")
+    public ResponseEntity click(@RequestHeader(value = ClusterNodes.SECRET_HEADER, required = false) String secret,
+                                @RequestParam String channelId,
+                                @RequestParam String userId,
+                                @RequestParam int clickType,
+                                @RequestParam int x,
+                                @RequestParam int y) {
+        if(!cluster.authorized(secret)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        }
+
+        games.click(channelId, userId, clickType, x, y);
+
+        return ResponseEntity.ok().build();
+    }
+
+
+    /**
+     * Takes over a game pushed by its previous owner
+     * @param secret shared cluster secret
+     * @param channelId Channel ID
+     * @param replace true to overwrite an older copy of the game sent by an earlier attempt
+     * @param encoded game snapshot
+     * @return 200 if adopted, 409 if this node already has a game for the channel, 400 if the snapshot is malformed
+     */
+    @PostMapping(value = "/adopt", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity adopt(@RequestHeader(value = ClusterNodes.SECRET_HEADER, required = false) String secret,
+                                @RequestParam String channelId,
+                                @RequestParam(required = false, defaultValue = "false") boolean replace,
+                                @RequestBody byte[] encoded) {
+        if(!cluster.authorized(secret)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        }
+
+        try {
+            if(!msService.adoptGame(channelId, encoded, replace)) {
+                return ResponseEntity.status(HttpStatus.CONFLICT).build();
+            }
+        }
+        catch(IllegalArgumentException iae) {
+            return ResponseEntity.badRequest().build();
+        }
+
+        return ResponseEntity.ok().build();
+    }
+
+
+    /**
+     * Gives up a game to the node that now owns its channel by pushing it to that node's
+     * /adopt, so the game is only dropped here once the claimant holds it
+     * @param secret shared cluster secret
+     * @param channelId Channel ID
+     * @param node base URL of the claiming node
+     * @return 200 once the claimant holds the game, 204 if this node doesn't have it, 502 if the push failed
+     */
+    @PostMapping("/claim")
+    public ResponseEntity claim(@RequestHeader(value = ClusterNodes.SECRET_HEADER, required = false) String secret,
+                                @RequestParam String channelId,
+                                @RequestParam String node) {
+        if(!cluster.authorized(secret)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        }
+
+        if(!cluster.isPeer(node)) {
+            return ResponseEntity.badRequest().body("Unknown cluster node.");
+        }
+
+        if(!msService.gameExists(channelId)) {
+            return ResponseEntity.noContent().build();
+        }
+
+        if(!cluster.push(node, channelId)) {
+            return ResponseEntity.status(HttpStatus.BAD_GATEWAY).build();
+        }
+
+        return ResponseEntity.ok().build();
+    }
+}
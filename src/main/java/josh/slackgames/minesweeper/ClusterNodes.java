@@ -0,0 +1,476 @@
+package josh.slackgames.minesweeper;
+
+import josh.slackgames.minesweeper.objects.Game;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.DefaultResponseErrorHandler;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import javax.annotation.PreDestroy;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Channel-affinity clustering, enabled with minesweeper.cluster.enabled=true.
+ *
+ * Every node lists the same minesweeper.cluster.nodes (base URLs, including its own
+ * minesweeper.cluster.self) and pings the others; the ones that answer form a consistent
+ * hash ring that maps each channel to the node holding its game. Requests landing on any
+ * other node are forwarded to the owner over HTTP, so no sticky sessions are needed. Board
+ * messages reach clients on other nodes through the broker, so clusters run with
+ * minesweeper.broker.mode=relay.
+ *
+ * When the ring changes, each node pushes the games it no longer owns to their new owner,
+ * and keeps retrying any that didn't move on each later ping. An owner missing a game first
+ * claims it from the other live nodes, so a game is never started twice while they can be
+ * reached. A node shutting down cleanly hands all its games to the remaining nodes first.
+ * Games are moved as their snapshot encoding and journaled on the receiving side.
+ *
+ * Nodes trust each other's requests, so minesweeper.cluster.secret must be set whenever
+ * clustering is enabled.
+ */
+@Component
+public class ClusterNodes {
+    private static final Logger LOG = LoggerFactory.getLogger(ClusterNodes.class);
+
+    static final String PATH = "/api/v1/minesweeper/cluster";
+    static final String SECRET_HEADER = "X-Cluster-Secret";
+
+    private final MinesweeperService msService;
+    private final boolean enabled;
+    private final String self;
+    private final List<String> peers;
+    private final int virtualNodes;
+    private final byte[] secret;
+    private final RestTemplate rest;
+
+    // viewport sessions on this node whose channel is owned elsewhere, so their owner hears about disconnects
+    private final Map<String, Set<String>> remoteSessions = new ConcurrentHashMap<>();
+
+    private volatile ClusterRing ring;
+    // the ring without this node, for who owns channels once it leaves
+    private volatile ClusterRing others;
+    private volatile boolean leaving = false;
+    // set when a rebalance left games here that another node owns
+    private volatile boolean unsettled = false;
+
+    // channels no other node had a game for, since the ring last changed
+    private volatile Set<String> unclaimed = ConcurrentHashMap.newKeySet();
+
+
+    @Autowired
+    public ClusterNodes(MinesweeperService msService,
+                        @Value("${minesweeper.cluster.enabled:false}") boolean enabled,
+                        @Value("${minesweeper.cluster.self:}") String self,
+                        @Value("${minesweeper.cluster.nodes:}") String nodes,
+                        @Value("${minesweeper.cluster.virtual-nodes:128}") int virtualNodes,
+                        @Value("${minesweeper.cluster.secret:}") String secret,
+                        @Value("${minesweeper.cluster.timeout-ms:2000}") int timeoutMs) {
+        this.msService = msService;
+        this.enabled = enabled;
+        this.self = trim(self);
+        this.peers = Arrays.stream(nodes.split(","))
+                .map(ClusterNodes::trim)
+                .filter(node -> !node.isEmpty() && !node.equals(this.self))
+                .distinct()
+                .collect(Collectors.toList());
+        this.virtualNodes = Math.max(1, virtualNodes);
+        this.secret = secret.trim().getBytes(StandardCharsets.UTF_8);
+        setRing(new ClusterRing(this.self.isEmpty() ? new ArrayList<>() : Arrays.asList(this.self), this.virtualNodes));
+
+        if(enabled && this.self.isEmpty()) {
+            throw new IllegalStateException("minesweeper.cluster.self must be set when clustering is enabled");
+        }
+
+        if(enabled && this.secret.length == 0) {
+            throw new IllegalStateException("minesweeper.cluster.secret must be set when clustering is enabled");
+        }
+
+        SimpleClientHttpRequestFactory requests = new SimpleClientHttpRequestFactory();
+        requests.setConnectTimeout(timeoutMs);
+        requests.setReadTimeout(timeoutMs);
+        this.rest = new RestTemplate(requests);
+
+        // statuses are passed through to callers rather than thrown
+        this.rest.setErrorHandler(new DefaultResponseErrorHandler() {
+            @Override
+            public boolean hasError(ClientHttpResponse response) {
+                return false;
+            }
+        });
+    }
+
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+
+    /**
+     * Lists the nodes in the current ring, this one included
+     * @return node base URLs
+     */
+    public List<String> getMembers() {
+        return ring.getNodes();
+    }
+
+
+    /**
+     * Checks if a channel's requests are handled here: this node owns it, or still holds its game
+     * @param channelId Channel ID
+     * @return boolean
+     */
+    boolean isLocal(String channelId) {
+        return !enabled || self.equals(owner(channelId)) || msService.gameExists(channelId);
+    }
+
+
+    /**
+     * Finds the node owning a channel, leaving this node out once it is shutting down
+     * @param channelId Channel ID
+     * @return node base URL
+     */
+    String owner(String channelId) {
+        return leaving ? others.owner(channelId) : ring.owner(channelId);
+    }
+
+
+    /**
+     * Checks a request comes from another node: clustering is on and the shared secret matches
+     * @param presented header value
+     * @return boolean
+     */
+    boolean authorized(String presented) {
+        return enabled && presented != null
+                && MessageDigest.isEqual(secret, presented.getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    /**
+     * Checks if this node is shutting down and no longer takes games
+     * @return boolean
+     */
+    boolean isLeaving() {
+        return leaving;
+    }
+
+
+    /**
+     * Forwards a request to a channel's owner
+     * @param channelId Channel ID
+     * @param path path under the cluster API
+     * @param params request parameters
+     * @return owner's response, or 502 if it can't be reached
+     */
+    ResponseEntity<String> forward(String channelId, String path, MultiValueMap<String, String> params) {
+        String owner = owner(channelId);
+
+        try {
+            return rest.exchange(uri(owner, path, params), HttpMethod.POST, new HttpEntity<>(headers()), String.class);
+        }
+        catch(RestClientException e) {
+            LOG.warn("Failed to forward {} for channel {} to {}", path, channelId, owner, e);
+            return ResponseEntity.status(HttpStatus.BAD_GATEWAY).body("Game server unavailable.");
+        }
+    }
+
+
+    /**
+     * Checks a node is one of the configured cluster nodes other than this one
+     * @param node node base URL
+     * @return boolean
+     */
+    boolean isPeer(String node) {
+        return node != null && peers.contains(trim(node));
+    }
+
+
+    /**
+     * Hands a channel's game to another node, e.g. one that claimed it
+     * @param node node base URL
+     * @param channelId Channel ID
+     * @return true once the other node holds the game
+     */
+    boolean push(String node, String channelId) {
+        return msService.handOffGame(channelId, (encoded, replace) -> send(node, channelId, encoded, replace));
+    }
+
+
+    /**
+     * Remembers that a session on this node watches a channel owned elsewhere
+     * @param sessionId WebSocket session ID
+     * @param channelId Channel ID
+     */
+    void watchRemote(String sessionId, String channelId) {
+        remoteSessions.computeIfAbsent(sessionId, id -> ConcurrentHashMap.newKeySet()).add(channelId);
+    }
+
+
+    /**
+     * Claims a channel's game from the other live nodes when this node owns the channel but
+     * doesn't have its game, starting with the node that would own it without this one. A
+     * node holding the game pushes it here through /adopt before answering, so it is never
+     * dropped by one node before the other has it. Channels no node had a game for aren't
+     * asked about again until the ring changes.
+     * @param channelId Channel ID
+     * @return the adopted game, or null if no other node had it
+     */
+    Game claim(String channelId) {
+        ClusterRing current = ring;
+        Set<String> misses = unclaimed;
+
+        if(!enabled || leaving || !self.equals(current.owner(channelId)) || misses.contains(channelId)) {
+            return null;
+        }
+
+        List<String> candidates = new ArrayList<>(current.getNodes());
+        candidates.remove(self);
+
+        String previous = others.owner(channelId);
+        if(previous != null && candidates.remove(previous)) {
+            candidates.add(0, previous);
+        }
+
+        boolean answered = true;
+
+        for(String peer : candidates) {
+            try {
+                ResponseEntity<String> response = rest.exchange(
+                        uri(peer, "/claim", params("channelId", channelId, "node", self)),
+                        HttpMethod.POST, new HttpEntity<>(headers()), String.class);
+
+                Game game = msService.getGame(channelId);
+                if(game != null) {
+                    LOG.info("Claimed game for channel {} from {}", channelId, peer);
+                    return game;
+                }
+
+                if(response.getStatusCode() != HttpStatus.NO_CONTENT) {
+                    LOG.warn("Failed to claim channel {} from {}: {}", channelId, peer, response.getStatusCode());
+                    answered = false;
+                }
+            }
+            catch(RestClientException e) {
+                LOG.warn("Failed to claim channel {} from {}", channelId, peer, e);
+                answered = false;
+            }
+        }
+
+        // a node that didn't answer may still have the game, so ask again next time
+        if(answered && ring == current) {
+            misses.add(channelId);
+        }
+
+        return msService.getGame(channelId);
+    }
+
+
+    /**
+     * Pings the configured nodes and rebuilds the ring when the set that answers changes,
+     * then retries moving any games left here that other nodes own
+     */
+    @Scheduled(fixedDelayString = "${minesweeper.cluster.ping-interval-ms:2000}")
+    public synchronized void checkMembers() {
+        if(!enabled || leaving) {
+            return;
+        }
+
+        List<String> live = new ArrayList<>();
+        live.add(self);
+
+        for(String peer : peers) {
+            try {
+                ResponseEntity<String> response = rest.exchange(uri(peer, "/ping", new LinkedMultiValueMap<>()),
+                        HttpMethod.GET, new HttpEntity<>(headers()), String.class);
+
+                if(response.getStatusCode() == HttpStatus.OK) {
+                    live.add(peer);
+                }
+            }
+            catch(RestClientException e) {
+                LOG.debug("Cluster node {} did not answer", peer);
+            }
+        }
+
+        ClusterRing next = new ClusterRing(live, virtualNodes);
+
+        if(!next.getNodes().equals(ring.getNodes())) {
+            LOG.info("Cluster members changed from {} to {}", ring.getNodes(), next.getNodes());
+            setRing(next);
+            unsettled = true;
+        }
+
+        if(unsettled) {
+            rebalance();
+        }
+    }
+
+
+    /**
+     * Tells owners elsewhere that a session watching their channels has gone
+     * @param event disconnect event
+     */
+    @EventListener
+    public void onDisconnect(SessionDisconnectEvent event) {
+        Set<String> channels = remoteSessions.remove(event.getSessionId());
+        if(channels == null) {
+            return;
+        }
+
+        for(String channelId : channels) {
+            forward(channelId, "/disconnect", params("channelId", channelId, "sessionId", event.getSessionId()));
+        }
+    }
+
+
+    /**
+     * Hands every game to the remaining nodes before shutting down
+     */
+    @PreDestroy
+    public synchronized void leave() {
+        if(!enabled) {
+            return;
+        }
+
+        leaving = true;
+        rebalance();
+    }
+
+
+    /**
+     * Switches to a new ring, forgetting which channels had no game elsewhere under the old one
+     * @param next new ring
+     */
+    private void setRing(ClusterRing next) {
+        others = next.without(self, virtualNodes);
+        unclaimed = ConcurrentHashMap.newKeySet();
+        ring = next;
+    }
+
+
+    /**
+     * Pushes each game this node holds but no longer owns to its owner. Games that fail to
+     * move are retried on the next ping.
+     */
+    private void rebalance() {
+        int moved = 0;
+        int stranded = 0;
+
+        for(String channelId : msService.getChannelIds()) {
+            String owner = owner(channelId);
+
+            if(owner == null || owner.equals(self)) {
+                continue;
+            }
+
+            if(push(owner, channelId)) {
+                moved++;
+            }
+            else if(msService.gameExists(channelId)) {
+                stranded++;
+            }
+        }
+
+        unsettled = stranded > 0;
+
+        if(moved > 0) {
+            LOG.info("Handed {} games to other cluster nodes", moved);
+        }
+        if(stranded > 0) {
+            LOG.warn("{} games are still held here for channels other nodes own, retrying", stranded);
+        }
+    }
+
+
+    /**
+     * Sends a game to its new owner
+     * @param owner node base URL
+     * @param channelId Channel ID
+     * @param encoded game snapshot
+     * @param replace true to overwrite the copy an earlier attempt sent
+     * @return true once the owner holds a game for the channel
+     */
+    private boolean send(String owner, String channelId, byte[] encoded, boolean replace) {
+        HttpHeaders headers = headers();
+        headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+
+        try {
+            ResponseEntity<String> response = rest.exchange(uri(owner, "/adopt", params("channelId", channelId, "replace", replace)),
+                    HttpMethod.POST, new HttpEntity<>(encoded, headers), String.class);
+
+            // a conflict means the owner already started a newer game for the channel
+            if(response.getStatusCode() == HttpStatus.CONFLICT) {
+                LOG.warn("Dropping game for channel {}, {} already has one", channelId, owner);
+                return true;
+            }
+
+            return response.getStatusCode() == HttpStatus.OK;
+        }
+        catch(RestClientException e) {
+            LOG.warn("Failed to hand off channel {} to {}", channelId, owner, e);
+            return false;
+        }
+    }
+
+
+    private HttpHeaders headers() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(SECRET_HEADER, new String(secret, StandardCharsets.UTF_8));
+        return headers;
+    }
+
+
+    private static URI uri(String node, String path, MultiValueMap<String, String> params) {
+        return UriComponentsBuilder.fromHttpUrl(node + PATH + path).queryParams(params).build().encode().toUri();
+    }
+
+
+    /**
+     * Builds request parameters from name/value pairs
+     * @param pairs names and values, alternating
+     * @return parameters
+     */
+    static MultiValueMap<String, String> params(Object... pairs) {
+        MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+
+        for(int i = 0; i + 1 < pairs.length; i += 2) {
+            if(pairs[i + 1] != null) {
+                params.add(String.valueOf(pairs[i]), String.valueOf(pairs[i + 1]));
+            }
+        }
+
+        return params;
+    }
+
+
+    private static String trim(String node) {
+        String trimmed = node.trim();
+        return trimmed.endsWith("/") ? trimmed.substring(0, trimmed.length() - 1) : trimmed;
+    }
+}
@@ -0,0 +1,91 @@
+package josh.slackgames.minesweeper;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Consistent hash ring mapping channel IDs to cluster nodes.
+ *
+ * Each node is placed at a number of points on the ring and a channel belongs to the first
+ * point at or after its own hash. Adding or removing a node only moves the channels between
+ * that node's points and their predecessors, about 1/N of them. Immutable; membership
+ * changes build a new ring.
+ */
+final class ClusterRing {
+
+    private final List<String> nodes;
+    private final TreeMap<Long, String> points = new TreeMap<>();
+
+
+    /**
+     * Builds a ring
+     * @param nodes node base URLs
+     * @param virtualNodes points per node; more points spread channels more evenly
+     */
+    ClusterRing(Collection<String> nodes, int virtualNodes) {
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(nodes)));
+
+        for(String node : this.nodes) {
+            for(int v = 0; v < virtualNodes; v++) {
+                points.put(hash(node + "#" + v), node);
+            }
+        }
+    }
+
+
+    /**
+     * Finds the node owning a channel
+     * @param channelId Channel ID
+     * @return node base URL, or null if the ring is empty
+     */
+    String owner(String channelId) {
+        if(points.isEmpty()) {
+            return null;
+        }
+
+        Map.Entry<Long, String> point = points.ceilingEntry(hash(channelId));
+        return point != null ? point.getValue() : points.firstEntry().getValue();
+    }
+
+
+    /**
+     * Builds the ring as it would be without a node, e.g. to find who owned a channel before it joined
+     * @param node node base URL
+     * @param virtualNodes points per node
+     * @return ClusterRing
+     */
+    ClusterRing without(String node, int virtualNodes) {
+        List<String> rest = new ArrayList<>(nodes);
+        rest.remove(node);
+        return new ClusterRing(rest, virtualNodes);
+    }
+
+
+    List<String> getNodes() {
+        return nodes;
+    }
+
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+
+            long h = 0;
+            for(int i = 0; i < 8; i++) {
+                h = h << 8 | (digest[i] & 0xFF);
+            }
+            return h;
+        }
+        catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
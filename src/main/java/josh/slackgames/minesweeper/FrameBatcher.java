@@ -0,0 +1,337 @@
+package josh.slackgames.minesweeper;
+
+import josh.slackgames.WSMessage;
+import josh.slackgames.minesweeper.objects.Game;
+import josh.slackgames.minesweeper.objects.LogEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects each channel's activity and board changes into one frame per tick.
+ *
+ * Clicks, joins and resets are recorded as LogEvents along with the cells they changed. The
+ * frame built from them carries the changed tiles and the events together, so a click costs
+ * one frame rather than a result plus an English log line. With minesweeper.frames.flush-ms
+ * at 0 each caller's unit of work (one click, or one mailbox run) is sent straight away;
+ * above 0, everything a channel does within the interval goes out as one frame, trading
+ * that much latency for fewer frames on busy channels.
+ */
+@Component
+public class FrameBatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(FrameBatcher.class);
+
+    private final ViewportRegistry viewports;
+    private final WireEncoding wire;
+    private final long flushMs;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, Pending> channels = new ConcurrentHashMap<>();
+
+
+    @Autowired
+    public FrameBatcher(MinesweeperService msService,
+                        ViewportRegistry viewports,
+                        WireEncoding wire,
+                        @Value("${minesweeper.frames.flush-ms:0}") long flushMs,
+                        @Value("${minesweeper.frames.threads:0}") int threads) {
+        this.viewports = viewports;
+        this.wire = wire;
+        this.flushMs = Math.max(0, flushMs);
+        this.scheduler = this.flushMs > 0
+                ? Executors.newScheduledThreadPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors())
+                : null;
+
+        msService.addRemovalListener(channels::remove);
+    }
+
+
+    /**
+     * Records a click and the cells it changed. Caller must hold the game's monitor.
+     * @param channelId Channel ID
+     * @param game Game the click was applied to
+     * @param userId User ID
+     * @param clickType 1 to reveal, 2 to flag
+     * @param x x coordinate
+     * @param y y coordinate
+     * @param clickResult result of the reveal or flag
+     */
+    void click(String channelId, Game game, String userId, int clickType, int x, int y, Integer clickResult) {
+        // already revealed, or the game is over
+        if(clickResult != null && clickResult == -2) {
+            return;
+        }
+
+        Pending pending = channels.computeIfAbsent(channelId, id -> new Pending());
+
+        synchronized (pending) {
+            pending.game = game;
+
+            if(clickResult != null && clickResult == -4) {
+                pending.events.add(new LogEvent("loss", userId, x, y));
+                pending.loss = true;
+                return;
+            }
+
+            if(clickType == ClickMailbox.FLAG) {
+                pending.events.add(new LogEvent("flag", userId, x, y));
+                pending.changed(new int[] { y * game.getWidth() + x });
+            }
+            else {
+                pending.events.add(new LogEvent("reveal", userId, x, y));
+                pending.changed(game.getLastRevealed());
+            }
+
+            if(clickResult != null && clickResult == -1) {
+                pending.won = true;
+            }
+        }
+    }
+
+
+    /**
+     * Records a reset; the next frame carries the whole new board. Caller must hold the new game's monitor.
+     * @param channelId Channel ID
+     * @param game new game
+     * @param userId User ID
+     */
+    void reset(String channelId, Game game, String userId) {
+        Pending pending = channels.computeIfAbsent(channelId, id -> new Pending());
+
+        synchronized (pending) {
+            pending.game = game;
+            pending.reset = true;
+            pending.loss = false;
+            pending.won = false;
+            pending.numChanged = 0;
+            pending.events.add(new LogEvent("reset", userId));
+        }
+    }
+
+
+    /**
+     * Records a user joining the channel. Caller must hold the game's monitor.
+     * @param channelId Channel ID
+     * @param game Game joined
+     * @param userId User ID
+     */
+    void join(String channelId, Game game, String userId) {
+        Pending pending = channels.computeIfAbsent(channelId, id -> new Pending());
+
+        synchronized (pending) {
+            // joins change nothing, so they never replace the game clicks and resets recorded
+            if(pending.game == null) {
+                pending.game = game;
+            }
+            pending.events.add(new LogEvent("join", userId));
+        }
+    }
+
+
+    /**
+     * Ends a caller's unit of work: sends the channel's frame now when there is no flush
+     * interval, otherwise makes sure one is scheduled. Caller must hold the game's monitor.
+     * @param channelId Channel ID
+     */
+    void commit(String channelId) {
+        Pending pending = channels.get(channelId);
+        if(pending == null) {
+            return;
+        }
+
+        if(scheduler == null) {
+            flush(channelId, pending);
+            return;
+        }
+
+        synchronized (pending) {
+            if(pending.scheduled) {
+                return;
+            }
+            pending.scheduled = true;
+        }
+
+        scheduler.schedule(() -> flush(channelId, pending), flushMs, TimeUnit.MILLISECONDS);
+    }
+
+
+    @PreDestroy
+    public void shutdown() {
+        if(scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+
+    /**
+     * Builds and sends a channel's pending frame under the game's monitor, so frames go out
+     * in the order the changes were made
+     * @param channelId Channel ID
+     * @param pending channel's pending activity
+     */
+    private void flush(String channelId, Pending pending) {
+        try {
+            while(true) {
+                Game game;
+                synchronized (pending) {
+                    game = pending.game;
+                }
+
+                if(game == null) {
+                    return;
+                }
+
+                synchronized (game) {
+                    Frame frame;
+                    synchronized (pending) {
+                        // a reset swapped the game while we waited for its monitor
+                        if(pending.game != game) {
+                            continue;
+                        }
+                        frame = pending.take();
+                    }
+
+                    if(frame != null) {
+                        send(channelId, game, frame);
+                    }
+                    return;
+                }
+            }
+        }
+        catch(RuntimeException e) {
+            LOG.error("Failed to flush frame for channel {}", channelId, e);
+        }
+    }
+
+
+    /**
+     * Sends a frame, to the channel topic or by viewport for custom boards. Caller must hold the game's monitor.
+     * @param channelId Channel ID
+     * @param game Game object
+     * @param frame frame contents
+     */
+    private void send(String channelId, Game game, Frame frame) {
+        String win = frame.won ? "win" : null;
+        List<LogEvent> events = frame.events.isEmpty() ? null : frame.events;
+        WSMessage board = null;
+
+        if(frame.reset || frame.loss) {
+            board = new WSMessage(game.isGameOver() ? "loss" : "initial", win, game.getBoard());
+        }
+        else if(frame.changed.length > 0) {
+            board = new WSMessage("delta", win, game.getBoard(frame.changed));
+        }
+
+        // custom boards route tiles per viewport, but everyone sees the activity
+        if(viewports.isRouted(game)) {
+            if(board != null) {
+                viewports.publish(channelId, game, board);
+            }
+            if(events != null) {
+                wire.toChannel(channelId, new WSMessage("log", null, null, events));
+            }
+        }
+        else if(board != null) {
+            wire.toChannel(channelId, new WSMessage(board.getType(), board.getMessage(), board.getContents(), events));
+        }
+        else if(events != null) {
+            wire.toChannel(channelId, new WSMessage("log", null, null, events));
+        }
+    }
+
+
+    /**
+     * Sorts and de-duplicates cell indices
+     * @param cells cell indices
+     * @param length number of valid entries
+     * @return distinct cell indices
+     */
+    private static int[] distinct(int[] cells, int length) {
+        Arrays.sort(cells, 0, length);
+
+        int n = 0;
+        for(int i = 0; i < length; i++) {
+            if(n == 0 || cells[i] != cells[n - 1]) {
+                cells[n++] = cells[i];
+            }
+        }
+
+        return Arrays.copyOf(cells, n);
+    }
+
+
+    private static final class Frame {
+        private final List<LogEvent> events;
+        private final int[] changed;
+        private final boolean reset;
+        private final boolean loss;
+        private final boolean won;
+
+        private Frame(List<LogEvent> events, int[] changed, boolean reset, boolean loss, boolean won) {
+            this.events = events;
+            this.changed = changed;
+            this.reset = reset;
+            this.loss = loss;
+            this.won = won;
+        }
+    }
+
+
+    /**
+     * Activity recorded since a channel's last frame; guarded by its own monitor
+     */
+    private static final class Pending {
+        private Game game;
+        private List<LogEvent> events = new ArrayList<>();
+        private int[] changed = new int[16];
+        private int numChanged;
+        private boolean reset;
+        private boolean loss;
+        private boolean won;
+        private boolean scheduled;
+
+        private void changed(int[] cells) {
+            if(cells == null) {
+                return;
+            }
+
+            if(numChanged + cells.length > changed.length) {
+                changed = Arrays.copyOf(changed, Math.max(changed.length * 2, numChanged + cells.length));
+            }
+            System.arraycopy(cells, 0, changed, numChanged, cells.length);
+            numChanged += cells.length;
+        }
+
+        /**
+         * Takes everything recorded so far, leaving the channel empty
+         * @return frame, or null if nothing happened
+         */
+        private Frame take() {
+            scheduled = false;
+
+            if(events.isEmpty() && numChanged == 0 && !reset && !loss) {
+                return null;
+            }
+
+            Frame frame = new Frame(events, distinct(changed, numChanged), reset, loss, won);
+            events = new ArrayList<>();
+            numChanged = 0;
+            reset = false;
+            loss = false;
+            won = false;
+
+            return frame;
+        }
+    }
+}
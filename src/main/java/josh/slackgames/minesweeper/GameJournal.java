@@ -0,0 +1,586 @@
+package josh.slackgames.minesweeper;
+
+import josh.slackgames.minesweeper.objects.Game;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Append-only binary journal of game events, enabled by setting minesweeper.journal.dir.
+ *
+ * Events are encoded into an in-memory buffer under a short lock and written by a single
+ * background thread, which fsyncs once per batch (group commit), so clicks never wait on
+ * the disk. A crash can lose at most the last minesweeper.journal.commit-interval-ms of events.
+ *
+ * The journal is a sequence of segment files plus at most one base file. A base is a
+ * {@link GameSnapshot} of every game and is written after rotating to a fresh segment, so
+ * recovery maps base-N and then replays segments N and up. Every record sets absolute state
+ * (clicks on revealed tiles are no-ops, flags record the resulting state), so replaying
+ * segment events the base already reflects is harmless.
+ */
+@Component
+public class GameJournal {
+    private static final Logger LOG = LoggerFactory.getLogger(GameJournal.class);
+
+    private static final int MAGIC = 0x4D534A31; // "MSJ1"
+
+    private static final byte DEFINE = 0;
+    private static final byte START = 1;
+    private static final byte RESET = 2;
+    private static final byte REVEAL = 3;
+    private static final byte FLAG = 4;
+    private static final byte END = 5;
+    private static final byte START_CUSTOM = 6;
+    private static final byte ADOPT = 7;
+
+    private final Path dir;
+    private final long commitIntervalMs;
+    private final long compactBytes;
+
+    // guards the pending buffer and channel ids; held only while encoding
+    private final Object bufferLock = new Object();
+    // guards the segment file; held while writing, syncing and rotating
+    private final Object fileLock = new Object();
+
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(64 * 1024);
+    private DataOutputStream pendingOut = new DataOutputStream(pending);
+    private ByteArrayOutputStream spare = new ByteArrayOutputStream(64 * 1024);
+    private final Map<String, Integer> channelIds = new HashMap<>();
+
+    private FileOutputStream segment;
+    private long segmentNumber;
+    private volatile long bytesSinceBase = 0;
+    private Thread writer;
+    private volatile boolean running = false;
+
+
+    public GameJournal(@Value("${minesweeper.journal.dir:}") String dir,
+                       @Value("${minesweeper.journal.commit-interval-ms:10}") long commitIntervalMs,
+                       @Value("${minesweeper.journal.compact-bytes:16777216}") long compactBytes) {
+        this.dir = dir.isEmpty() ? null : Paths.get(dir);
+        this.commitIntervalMs = Math.max(1, commitIntervalMs);
+        this.compactBytes = compactBytes;
+    }
+
+
+    /**
+     * Receives journal events during recovery
+     */
+    interface Replayer {
+        void snapshot(GameSnapshot snapshot);
+
+        void start(String channelId, MinesweeperService.Level level, long seed);
+
+        void startCustom(String channelId, int width, int height, int numMines, long seed);
+
+        void reset(String channelId, long seed);
+
+        void reveal(String channelId, int x, int y);
+
+        void flag(String channelId, int x, int y, boolean flagged);
+
+        void end(String channelId);
+
+        void adopt(String channelId, Game game);
+    }
+
+
+    public boolean isEnabled() {
+        return dir != null;
+    }
+
+
+    public boolean isRunning() {
+        return running;
+    }
+
+
+    /**
+     * Maps the newest base and replays the segments after it, then starts a fresh segment for appends
+     * @param replayer event receiver
+     * @throws IOException if the journal directory can't be read or written
+     */
+    void recover(Replayer replayer) throws IOException {
+        if(!isEnabled()) {
+            return;
+        }
+
+        Files.createDirectories(dir);
+
+        List<Long> bases = numbered("base-", ".bin");
+        List<Long> segments = numbered("segment-", ".log");
+        long base = bases.isEmpty() ? 0 : bases.get(bases.size() - 1);
+        long events = 0;
+        long start = System.nanoTime();
+
+        if(!bases.isEmpty()) {
+            try {
+                replayer.snapshot(GameSnapshot.open(dir.resolve(baseName(base))));
+            }
+            catch(IOException e) {
+                LOG.error("Skipping unreadable journal base {}", baseName(base), e);
+            }
+        }
+
+        for(long number : segments) {
+            if(number >= base) {
+                events += read(dir.resolve(segmentName(number)), replayer);
+            }
+        }
+
+        LOG.info("Replayed {} journal events in {} ms", events, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        long last = segments.isEmpty() ? base : Math.max(base, segments.get(segments.size() - 1));
+        synchronized (fileLock) {
+            rotate(last + 1);
+            bytesSinceBase = segments.stream()
+                    .filter(number -> number >= base)
+                    .mapToLong(number -> dir.resolve(segmentName(number)).toFile().length())
+                    .sum();
+        }
+
+        running = true;
+        writer = new Thread(this::writeLoop, "game-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+
+    void logStart(String channelId, Game game) {
+        if(!running) {
+            return;
+        }
+
+        synchronized (bufferLock) {
+            try {
+                int id = channelId(channelId);
+
+                if(game.getLevel() == null) {
+                    pendingOut.writeByte(START_CUSTOM);
+                    pendingOut.writeInt(id);
+                    pendingOut.writeShort(game.getWidth());
+                    pendingOut.writeShort(game.getHeight());
+                    pendingOut.writeInt(game.getNumMines());
+                }
+                else {
+                    pendingOut.writeByte(START);
+                    pendingOut.writeInt(id);
+                    pendingOut.writeByte(game.getLevel().ordinal());
+                }
+
+                pendingOut.writeLong(game.getSeed());
+            }
+            catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+
+    void logReset(String channelId, long seed) {
+        if(!running) {
+            return;
+        }
+
+        synchronized (bufferLock) {
+            try {
+                int id = channelId(channelId);
+                pendingOut.writeByte(RESET);
+                pendingOut.writeInt(id);
+                pendingOut.writeLong(seed);
+            }
+            catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+
+    void logReveal(String channelId, int x, int y) {
+        if(!running) {
+            return;
+        }
+
+        synchronized (bufferLock) {
+            try {
+                int id = channelId(channelId);
+                pendingOut.writeByte(REVEAL);
+                pendingOut.writeInt(id);
+                pendingOut.writeShort(x);
+                pendingOut.writeShort(y);
+            }
+            catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+
+    void logFlag(String channelId, int x, int y, boolean flagged) {
+        if(!running) {
+            return;
+        }
+
+        synchronized (bufferLock) {
+            try {
+                int id = channelId(channelId);
+                pendingOut.writeByte(FLAG);
+                pendingOut.writeInt(id);
+                pendingOut.writeShort(x);
+                pendingOut.writeShort(y);
+                pendingOut.writeBoolean(flagged);
+            }
+            catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+
+    void logEnd(String channelId) {
+        if(!running) {
+            return;
+        }
+
+        synchronized (bufferLock) {
+            try {
+                int id = channelId(channelId);
+                pendingOut.writeByte(END);
+                pendingOut.writeInt(id);
+            }
+            catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+
+    /**
+     * Records a game handed over by another cluster node, as its full snapshot
+     * @param channelId Channel ID
+     * @param snapshot game encoded by {@link Game#writeSnapshot(ByteBuffer)}
+     */
+    void logAdopt(String channelId, byte[] snapshot) {
+        if(!running) {
+            return;
+        }
+
+        synchronized (bufferLock) {
+            try {
+                int id = channelId(channelId);
+                pendingOut.writeByte(ADOPT);
+                pendingOut.writeInt(id);
+                pendingOut.writeInt(snapshot.length);
+                pendingOut.write(snapshot);
+            }
+            catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+
+    /**
+     * Checks if enough has been appended since the last base to make compaction worthwhile
+     * @return boolean
+     */
+    boolean needsCompaction() {
+        return running && bytesSinceBase > compactBytes;
+    }
+
+
+    /**
+     * Rotates to a fresh segment, writes a base snapshot of the given games and deletes
+     * everything the new base supersedes
+     * @param games live games by channel ID; each is encoded under its monitor
+     * @param previous snapshot whose still-pending games are carried over, or null
+     * @return the new base, opened
+     * @throws IOException if the base can't be written
+     */
+    GameSnapshot compact(Map<String, Game> games, GameSnapshot previous) throws IOException {
+        long base;
+
+        synchronized (fileLock) {
+            rotate(segmentNumber + 1);
+            base = segmentNumber;
+            bytesSinceBase = 0;
+        }
+
+        Path tmp = dir.resolve(baseName(base) + ".tmp");
+        GameSnapshot.write(tmp, games, previous);
+        Files.move(tmp, dir.resolve(baseName(base)), StandardCopyOption.ATOMIC_MOVE);
+
+        // the previous base stays mapped until closed, so it can be deleted now
+        for(long number : numbered("base-", ".bin")) {
+            if(number < base) {
+                Files.deleteIfExists(dir.resolve(baseName(number)));
+            }
+        }
+
+        for(long number : numbered("segment-", ".log")) {
+            if(number < base) {
+                Files.deleteIfExists(dir.resolve(segmentName(number)));
+            }
+        }
+
+        GameSnapshot snapshot = GameSnapshot.open(dir.resolve(baseName(base)));
+        LOG.info("Compacted game journal into {} for {} games", baseName(base), snapshot.size());
+
+        return snapshot;
+    }
+
+
+    @PreDestroy
+    public void close() {
+        if(!running) {
+            return;
+        }
+
+        running = false;
+
+        // interrupting would close the segment's channel mid-write, so let the loop finish
+        try {
+            writer.join(commitIntervalMs * 10);
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (fileLock) {
+            try {
+                flush();
+                segment.close();
+            }
+            catch(IOException e) {
+                LOG.error("Failed to close game journal", e);
+            }
+        }
+    }
+
+
+    /**
+     * Group commit loop: every commit interval, write whatever is pending and sync once
+     */
+    private void writeLoop() {
+        while(running) {
+            try {
+                Thread.sleep(commitIntervalMs);
+            }
+            catch(InterruptedException e) {
+                return;
+            }
+
+            synchronized (fileLock) {
+                try {
+                    flush();
+                }
+                catch(IOException e) {
+                    LOG.error("Failed to write game journal", e);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Writes and syncs pending events to the current segment. Caller must hold fileLock.
+     * @throws IOException on write failure
+     */
+    private void flush() throws IOException {
+        ByteArrayOutputStream batch;
+
+        synchronized (bufferLock) {
+            batch = takePending();
+        }
+
+        write(batch);
+    }
+
+
+    /**
+     * Finishes the current segment and starts a new one. Events encoded before the switch go to
+     * the old segment; events after it are encoded against fresh channel IDs for the new one.
+     * Caller must hold fileLock.
+     * @param number segment number
+     * @throws IOException if the segment can't be written or created
+     */
+    private void rotate(long number) throws IOException {
+        ByteArrayOutputStream batch;
+
+        synchronized (bufferLock) {
+            batch = takePending();
+            channelIds.clear();
+            pendingOut.writeInt(MAGIC);
+        }
+
+        if(segment != null) {
+            write(batch);
+            segment.close();
+        }
+
+        segment = new FileOutputStream(dir.resolve(segmentName(number)).toFile());
+        segmentNumber = number;
+    }
+
+
+    /**
+     * Swaps the pending buffer for the spare one. Caller must hold fileLock and bufferLock.
+     * @return buffer holding the events encoded so far
+     */
+    private ByteArrayOutputStream takePending() {
+        ByteArrayOutputStream batch = pending;
+        pending = spare;
+        pendingOut = new DataOutputStream(pending);
+        spare = batch;
+
+        return batch;
+    }
+
+
+    /**
+     * Appends a batch to the current segment and syncs it. Caller must hold fileLock.
+     * @param batch encoded events
+     * @throws IOException on write failure
+     */
+    private void write(ByteArrayOutputStream batch) throws IOException {
+        if(batch.size() == 0) {
+            return;
+        }
+
+        batch.writeTo(segment);
+        segment.getChannel().force(false);
+        bytesSinceBase += batch.size();
+        batch.reset();
+    }
+
+
+    /**
+     * Looks up the journal ID of a channel, defining it in the segment on first use.
+     * Caller must hold bufferLock.
+     * @param channelId Channel ID
+     * @return journal ID
+     * @throws IOException on encoding failure
+     */
+    private int channelId(String channelId) throws IOException {
+        Integer id = channelIds.get(channelId);
+
+        if(id == null) {
+            id = channelIds.size();
+            channelIds.put(channelId, id);
+            pendingOut.writeByte(DEFINE);
+            pendingOut.writeInt(id);
+            pendingOut.writeUTF(channelId);
+        }
+
+        return id;
+    }
+
+
+    /**
+     * Replays one journal file, stopping quietly at a torn final record
+     * @param file journal file
+     * @param replayer event receiver
+     * @return number of events replayed
+     * @throws IOException if the file can't be opened
+     */
+    private long read(Path file, Replayer replayer) throws IOException {
+        Map<Integer, String> names = new HashMap<>();
+        MinesweeperService.Level[] levels = MinesweeperService.Level.values();
+        long events = 0;
+
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if(in.readInt() != MAGIC) {
+                throw new IOException("Not a game journal");
+            }
+
+            while(true) {
+                int type = in.read();
+                if(type < 0) {
+                    break;
+                }
+
+                int id = in.readInt();
+
+                switch(type) {
+                    case DEFINE:
+                        names.put(id, in.readUTF());
+                        break;
+                    case START:
+                        replayer.start(names.get(id), levels[in.readUnsignedByte()], in.readLong());
+                        break;
+                    case START_CUSTOM:
+                        replayer.startCustom(names.get(id), in.readUnsignedShort(), in.readUnsignedShort(), in.readInt(), in.readLong());
+                        break;
+                    case RESET:
+                        replayer.reset(names.get(id), in.readLong());
+                        break;
+                    case REVEAL:
+                        replayer.reveal(names.get(id), in.readUnsignedShort(), in.readUnsignedShort());
+                        break;
+                    case FLAG:
+                        replayer.flag(names.get(id), in.readUnsignedShort(), in.readUnsignedShort(), in.readBoolean());
+                        break;
+                    case END:
+                        replayer.end(names.get(id));
+                        break;
+                    case ADOPT:
+                        byte[] snapshot = new byte[in.readInt()];
+                        in.readFully(snapshot);
+                        replayer.adopt(names.get(id), Game.readSnapshot(ByteBuffer.wrap(snapshot)));
+                        break;
+                    default:
+                        throw new IOException(String.format("Unknown record type %d", type));
+                }
+
+                events++;
+            }
+        }
+        catch(EOFException e) {
+            LOG.warn("Journal {} ends with a partial record", file.getFileName());
+        }
+        catch(IOException e) {
+            LOG.error("Stopped replaying corrupt journal {}", file.getFileName(), e);
+        }
+
+        return events;
+    }
+
+
+    /**
+     * Lists the numbers of journal files with a given prefix and suffix, ascending
+     * @param prefix file name prefix
+     * @param suffix file name suffix
+     * @return file numbers
+     * @throws IOException if the directory can't be listed
+     */
+    private List<Long> numbered(String prefix, String suffix) throws IOException {
+        try(Stream<Path> files = Files.list(dir)) {
+            return files
+                    .map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(prefix) && name.endsWith(suffix))
+                    .map(name -> Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+
+    private static String segmentName(long number) {
+        return String.format("segment-%010d.log", number);
+    }
+
+
+    private static String baseName(long number) {
+        return String.format("base-%010d.bin", number);
+    }
+}
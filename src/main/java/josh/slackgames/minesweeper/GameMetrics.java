@@ -0,0 +1,125 @@
+package josh.slackgames.minesweeper;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import josh.slackgames.minesweeper.objects.Game;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micrometer meters for click handling and the game registry.
+ *
+ * Every meter the click path records into is registered up front and picked by array index,
+ * so recording a click allocates nothing. Levels are tagged by name, with custom boards as
+ * CUSTOM. Registry counts are read when the meters are scraped.
+ */
+@Component
+public class GameMetrics {
+
+    private static final int CUSTOM = MinesweeperService.Level.values().length;
+
+    // [click type - 1][level]
+    private final Timer[][] clicks = new Timer[2][CUSTOM + 1];
+    private final Timer[] fields = new Timer[CUSTOM + 1];
+    private final DistributionSummary[] reveals = new DistributionSummary[CUSTOM + 1];
+
+    // gauges only hold their object weakly, and nothing else holds this proxy
+    private final MinesweeperService msService;
+
+
+    @Autowired
+    public GameMetrics(MeterRegistry registry, @Lazy MinesweeperService msService) {
+        this.msService = msService;
+
+        for(int level = 0; level <= CUSTOM; level++) {
+            String name = level == CUSTOM ? "CUSTOM" : MinesweeperService.Level.values()[level].name();
+
+            clicks[ClickMailbox.REVEAL - 1][level] = Timer.builder("minesweeper.click")
+                    .description("Time to apply a click to a game")
+                    .tags("type", "reveal", "level", name)
+                    .publishPercentileHistogram()
+                    .register(registry);
+            clicks[ClickMailbox.FLAG - 1][level] = Timer.builder("minesweeper.click")
+                    .description("Time to apply a click to a game")
+                    .tags("type", "flag", "level", name)
+                    .publishPercentileHistogram()
+                    .register(registry);
+            fields[level] = Timer.builder("minesweeper.field.generate")
+                    .description("Time the first reveal spends laying mines")
+                    .tags("level", name)
+                    .register(registry);
+            reveals[level] = DistributionSummary.builder("minesweeper.reveal.cells")
+                    .description("Cells uncovered by one reveal, including flood fills")
+                    .tags("level", name)
+                    .publishPercentileHistogram()
+                    .register(registry);
+        }
+
+        Gauge.builder("minesweeper.games", msService, MinesweeperService::getGameCount)
+                .description("Games in memory").tag("state", "active").register(registry);
+        Gauge.builder("minesweeper.games", msService, MinesweeperService::getSnapshotGameCount)
+                .description("Games still encoded in the snapshot").tag("state", "snapshot").register(registry);
+        Gauge.builder("minesweeper.games", msService, MinesweeperService::getHibernatingGames)
+                .description("Games with their cells released, as of the last sweep").tag("state", "hibernating").register(registry);
+        Gauge.builder("minesweeper.games", msService, MinesweeperService::getFinishedGames)
+                .description("Won or lost games, as of the last sweep").tag("state", "finished").register(registry);
+        Gauge.builder("minesweeper.games.bytes", msService, MinesweeperService::getEstimatedBytes)
+                .description("Estimated heap held by games, as of the last sweep").register(registry);
+
+        FunctionCounter.builder("minesweeper.games.evicted", msService, MinesweeperService::getIdleEvictions)
+                .tag("reason", "idle").register(registry);
+        FunctionCounter.builder("minesweeper.games.evicted", msService, MinesweeperService::getFinishedEvictions)
+                .tag("reason", "finished").register(registry);
+        FunctionCounter.builder("minesweeper.games.evicted", msService, MinesweeperService::getBudgetEvictions)
+                .tag("reason", "budget").register(registry);
+    }
+
+
+    /**
+     * Records a reveal
+     * @param game Game the click was applied to
+     * @param result result of the reveal
+     * @param nanos time taken
+     * @param laidField true if this reveal laid the mines
+     */
+    void reveal(Game game, Integer result, long nanos, boolean laidField) {
+        int level = level(game);
+        clicks[ClickMailbox.REVEAL - 1][level].record(nanos, TimeUnit.NANOSECONDS);
+
+        // already revealed, or the game is over
+        if(result != null && result == -2) {
+            return;
+        }
+
+        int[] revealed = game.getLastRevealed();
+        if(revealed != null && (result == null || result != -4)) {
+            reveals[level].record(revealed.length);
+        }
+
+        if(laidField && game.getFieldNanos() > 0) {
+            fields[level].record(game.getFieldNanos(), TimeUnit.NANOSECONDS);
+        }
+    }
+
+
+    /**
+     * Records a flag toggle
+     * @param game Game the click was applied to
+     * @param nanos time taken
+     */
+    void flag(Game game, long nanos) {
+        clicks[ClickMailbox.FLAG - 1][level(game)].record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+
+    private static int level(Game game) {
+        MinesweeperService.Level level = game.getLevel();
+        return level == null ? CUSTOM : level.ordinal();
+    }
+}
@@ -0,0 +1,287 @@
+package josh.slackgames.minesweeper;
+
+import josh.slackgames.minesweeper.objects.Game;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Single-file snapshot of many games, memory-mapped on open and decoded one game at a time.
+ *
+ * Layout: magic, game count, then per game the channel ID (length-prefixed UTF-8), the
+ * encoded length and the bytes from {@link Game#writeSnapshot(ByteBuffer)}. Opening only
+ * walks the headers to index channel IDs; a game is decoded when its channel is first taken.
+ *
+ * When compaction writes a newer snapshot, the old one hands its pending channels off to it
+ * and forwards any later calls, so callers holding the old reference stay correct.
+ */
+final class GameSnapshot implements Closeable {
+    private static final int MAGIC = 0x4D535331; // "MSS1"
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+
+    // channel ID to offset of the encoded game, for games not yet taken
+    private final Map<String, Integer> pending = new HashMap<>();
+    private GameSnapshot successor;
+
+
+    private GameSnapshot(FileChannel channel, MappedByteBuffer buffer) {
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+
+    /**
+     * Maps a snapshot file and indexes its channel IDs
+     * @param file snapshot file
+     * @return GameSnapshot
+     * @throws IOException if the file can't be mapped or isn't a snapshot
+     */
+    static GameSnapshot open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        GameSnapshot snapshot = new GameSnapshot(channel, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        ByteBuffer in = snapshot.buffer.duplicate();
+
+        if(in.getInt() != MAGIC) {
+            snapshot.close();
+            throw new IOException(String.format("%s is not a game snapshot", file));
+        }
+
+        int count = in.getInt();
+        for(int i = 0; i < count; i++) {
+            byte[] name = new byte[in.getShort() & 0xFFFF];
+            in.get(name);
+
+            int length = in.getInt();
+            snapshot.pending.put(new String(name, StandardCharsets.UTF_8), in.position());
+            in.position(in.position() + length);
+        }
+
+        return snapshot;
+    }
+
+
+    /**
+     * Writes live games plus every game still pending in a previous snapshot
+     * @param file destination
+     * @param games live games by channel ID; each is encoded under its monitor
+     * @param previous earlier snapshot whose untouched games are carried over, or null
+     * @throws IOException on write failure
+     */
+    static void write(Path file, Map<String, Game> games, GameSnapshot previous) throws IOException {
+        Map<String, ByteBuffer> carried = previous == null ? Collections.emptyMap() : previous.pendingBuffers();
+
+        try(FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            header.putInt(MAGIC);
+            header.putInt(0);
+            header.flip();
+            out.write(header);
+
+            Set<String> written = new HashSet<>();
+            for(Map.Entry<String, Game> entry : games.entrySet()) {
+                Game game = entry.getValue();
+                ByteBuffer encoded;
+
+                synchronized (game) {
+                    encoded = ByteBuffer.allocate(game.snapshotSize());
+                    game.writeSnapshot(encoded);
+                }
+
+                encoded.flip();
+                writeEntry(out, entry.getKey(), encoded);
+                written.add(entry.getKey());
+            }
+
+            // pending games were collected before the live ones and take() registers a game
+            // before it stops being pending, so each game is in at least one of the two; one
+            // decoded while we iterated may be missed above, but its older copy is still
+            // consistent with the journal that follows this snapshot
+            for(Map.Entry<String, ByteBuffer> entry : carried.entrySet()) {
+                if(written.add(entry.getKey())) {
+                    writeEntry(out, entry.getKey(), entry.getValue());
+                }
+            }
+
+            header.clear();
+            header.putInt(MAGIC);
+            header.putInt(written.size());
+            header.flip();
+            out.write(header, 0);
+            out.force(true);
+        }
+    }
+
+
+    /**
+     * Decodes a pending game and stops tracking it. The game is registered before this
+     * snapshot's monitor is released, so a compaction collecting pending games finds it
+     * either still pending or already live, never neither.
+     * @param channelId Channel ID
+     * @param register adds the decoded game to the live games
+     * @return Game or null if the snapshot has no pending game for the channel
+     */
+    synchronized Game take(String channelId, Consumer<Game> register) {
+        if(successor != null) {
+            return successor.take(channelId, register);
+        }
+
+        Integer offset = pending.remove(channelId);
+
+        if(offset == null) {
+            return null;
+        }
+
+        ByteBuffer in = buffer.duplicate();
+        in.position(offset);
+
+        Game game = Game.readSnapshot(in);
+        register.accept(game);
+
+        return game;
+    }
+
+
+    synchronized boolean contains(String channelId) {
+        if(successor != null) {
+            return successor.contains(channelId);
+        }
+
+        return pending.containsKey(channelId);
+    }
+
+
+    /**
+     * Forgets a pending game, e.g. because it was ended or replaced
+     * @param channelId Channel ID
+     * @return true if the game was pending
+     */
+    synchronized boolean remove(String channelId) {
+        if(successor != null) {
+            return successor.remove(channelId);
+        }
+
+        return pending.remove(channelId) != null;
+    }
+
+
+    synchronized int size() {
+        if(successor != null) {
+            return successor.size();
+        }
+
+        return pending.size();
+    }
+
+
+    /**
+     * Makes a newer snapshot the owner of this one's pending games. Games the newer snapshot
+     * holds that were taken or removed here in the meantime are dropped from it.
+     * @param next snapshot written from the live games and this snapshot's pending ones
+     */
+    synchronized void handOff(GameSnapshot next) {
+        next.retain(pending.keySet());
+        pending.clear();
+        successor = next;
+    }
+
+
+    /**
+     * Keeps only the given channels pending
+     * @param channelIds channels to keep
+     */
+    synchronized void retain(Set<String> channelIds) {
+        pending.keySet().retainAll(channelIds);
+    }
+
+
+    /**
+     * Lists the channels of all pending games
+     * @return channel IDs
+     */
+    synchronized List<String> channelIds() {
+        if(successor != null) {
+            return successor.channelIds();
+        }
+
+        return new ArrayList<>(pending.keySet());
+    }
+
+
+    /**
+     * Lists pending games that were last used before a cutoff, without decoding them
+     * @param cutoff last access time the games must be older than
+     * @param finished true to list won or lost games, false for games in progress
+     * @return channel IDs
+     */
+    synchronized List<String> expired(long cutoff, boolean finished) {
+        if(successor != null) {
+            return successor.expired(cutoff, finished);
+        }
+
+        List<String> expired = new ArrayList<>();
+
+        for(Map.Entry<String, Integer> entry : pending.entrySet()) {
+            int offset = entry.getValue();
+
+            if(Game.peekFinished(buffer, offset) == finished && Game.peekLastAccessed(buffer, offset) < cutoff) {
+                expired.add(entry.getKey());
+            }
+        }
+
+        return expired;
+    }
+
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+
+    /**
+     * Slices out the encoded bytes of every pending game
+     * @return buffers by channel ID
+     */
+    private synchronized Map<String, ByteBuffer> pendingBuffers() {
+        Map<String, ByteBuffer> buffers = new HashMap<>();
+
+        for(Map.Entry<String, Integer> entry : pending.entrySet()) {
+            ByteBuffer slice = buffer.duplicate();
+            int offset = entry.getValue();
+            slice.position(offset - 4);
+            int length = slice.getInt();
+            slice.limit(offset + length);
+            buffers.put(entry.getKey(), slice.slice());
+        }
+
+        return buffers;
+    }
+
+
+    private static void writeEntry(FileChannel out, String channelId, ByteBuffer encoded) throws IOException {
+        byte[] name = channelId.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(2 + name.length + 4);
+        header.putShort((short) name.length);
+        header.put(name);
+        header.putInt(encoded.remaining());
+        header.flip();
+
+        while(header.hasRemaining()) {
+            out.write(header);
+        }
+
+        while(encoded.hasRemaining()) {
+            out.write(encoded);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package josh.slackgames.minesweeper;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import josh.slackgames.WSMessage;
+import josh.slackgames.minesweeper.objects.Game;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serialized board sent to users joining a channel, kept per game version.
+ *
+ * A burst of joins between two clicks builds and serializes the board once; every other
+ * join sends the same bytes. Each encoding is built the first time a session asks for it.
+ */
+@Component
+public class JoinCache {
+
+    private final ObjectMapper mapper;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+
+    @Autowired
+    public JoinCache(MinesweeperService msService, ObjectMapper mapper) {
+        this.mapper = mapper;
+
+        msService.addRemovalListener(entries::remove);
+    }
+
+
+    /**
+     * Gets the serialized "initial" or "loss" message for a game's current board.
+     * Caller must hold the game's monitor.
+     * @param channelId Channel ID
+     * @param game Game object
+     * @param packed true for the packed encoding, false for JSON boards
+     * @return message as JSON bytes
+     */
+    byte[] payload(String channelId, Game game, boolean packed) {
+        Entry entry = entries.get(channelId);
+
+        // a reset replaces the game, a click bumps its version
+        if(entry == null || entry.game != game || entry.version != game.getVersion()) {
+            entry = new Entry(game);
+            entries.put(channelId, entry);
+        }
+
+        byte[] bytes = packed ? entry.packed : entry.json;
+
+        if(bytes == null) {
+            WSMessage message = new WSMessage(game.isGameOver() ? "loss" : "initial", null, game.getBoard());
+            bytes = serialize(packed ? WireEncoding.pack(message) : message);
+
+            if(packed) {
+                entry.packed = bytes;
+            }
+            else {
+                entry.json = bytes;
+            }
+        }
+
+        return bytes;
+    }
+
+
+    private byte[] serialize(WSMessage message) {
+        try {
+            return mapper.writeValueAsBytes(message);
+        }
+        catch(JsonProcessingException e) {
+            throw new IllegalStateException("Could not serialize board", e);
+        }
+    }
+
+
+    /**
+     * Payloads of one game version; only touched under that game's monitor
+     */
+    private static final class Entry {
+        private final Game game;
+        private final int version;
+        private byte[] json;
+        private byte[] packed;
+
+        private Entry(Game game) {
+            this.game = game;
+            this.version = game.getVersion();
+        }
+    }
+}
@@ -1,149 +1,412 @@
 package josh.slackgames.minesweeper;
 
 import josh.slackgames.WSMessage;
+import josh.slackgames.minesweeper.objects.Board;
 import josh.slackgames.minesweeper.objects.Game;
-import josh.slackgames.minesweeper.objects.Tile;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.*;
 import org.springframework.messaging.handler.annotation.DestinationVariable;
 import org.springframework.messaging.handler.annotation.MessageMapping;
-import org.springframework.messaging.handler.annotation.SendTo;
-import org.springframework.messaging.simp.SimpMessagingTemplate;
-import org.springframework.messaging.simp.annotation.SendToUser;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static josh.slackgames.minesweeper.ClusterNodes.params;
+
 @RestController
 @RequestMapping("/api/v1/minesweeper")
 public class MinesweeperController {
 
+    private static final WSMessage THROTTLED = new WSMessage("throttled", "Too many clicks, slow down.");
+
     private final MinesweeperService msService;
-    private final SimpMessagingTemplate template;
+    private final ClickMailbox mailbox;
+    private final ViewportRegistry viewports;
+    private final WireEncoding wire;
+    private final JoinCache joinCache;
+    private final FrameBatcher frames;
+    private final ClusterNodes cluster;
+    private final ClickThrottle throttle;
 
 
     @Autowired
-    public MinesweeperController(MinesweeperService msService, SimpMessagingTemplate template) {
+    public MinesweeperController(MinesweeperService msService,
+                                 ClickMailbox mailbox,
+                                 ViewportRegistry viewports,
+                                 WireEncoding wire,
+                                 JoinCache joinCache,
+                                 FrameBatcher frames,
+                                 ClusterNodes cluster,
+                                 ClickThrottle throttle) {
         this.msService = msService;
-        this.template = template;
+        this.mailbox = mailbox;
+        this.viewports = viewports;
+        this.wire = wire;
+        this.joinCache = joinCache;
+        this.frames = frames;
+        this.cluster = cluster;
+        this.throttle = throttle;
     }
 
 
+    /**
+     * Starts a game at a fixed level, or on a custom board when width and height are given
+     * @param channelId Channel ID
+     * @param level BEGINNER, INTERMEDIATE or EXPERT
+     * @param width custom board width
+     * @param height custom board height
+     * @param mines custom mine count, defaults to 15% of the board
+     * @return ResponseEntity
+     */
     @PostMapping("/start-game")
-    public ResponseEntity startGame(@RequestParam String channelId, @RequestParam(required = false, defaultValue = "BEGINNER") String level) {
-        // attempt to start game
-        if(!msService.gameExists(channelId)) {
+    public ResponseEntity startGame(@RequestParam String channelId,
+                                    @RequestParam(required = false, defaultValue = "BEGINNER") String level,
+                                    @RequestParam(required = false) Integer width,
+                                    @RequestParam(required = false) Integer height,
+                                    @RequestParam(required = false) Integer mines) {
+        if(!cluster.isLocal(channelId)) {
+            return cluster.forward(channelId, "/start-game",
+                    params("channelId", channelId, "level", level, "width", width, "height", height, "mines", mines));
+        }
+
+        return start(channelId, level, width, height, mines);
+    }
+
+
+    /**
+     * Registry size and eviction counters, for tuning the eviction settings
+     * @return ResponseEntity
+     */
+    @GetMapping("/stats")
+    public ResponseEntity stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("games", msService.getGameCount());
+        stats.put("snapshotGames", msService.getSnapshotGameCount());
+        stats.put("hibernatingGames", msService.getHibernatingGames());
+        stats.put("estimatedBytes", msService.getEstimatedBytes());
+        stats.put("idleEvictions", msService.getIdleEvictions());
+        stats.put("finishedEvictions", msService.getFinishedEvictions());
+        stats.put("budgetEvictions", msService.getBudgetEvictions());
+        stats.put("throttledCommands", throttle.getThrottled());
+
+        return ResponseEntity.ok(stats);
+    }
+
+
+    /**
+     * Does the initial load of a game when client first connects to WS and sends the board to the caller
+     * @param channelId Channel ID
+     * @param userId User ID
+     * @param headers STOMP headers, for the session ID
+     */
+    @MessageMapping("/minesweeper/load/{channelId}/{userId}")
+    public void loadGame(@DestinationVariable String channelId,
+                         @DestinationVariable String userId,
+                         SimpMessageHeaderAccessor headers) {
+        String sessionId = headers.getSessionId();
+
+        if(!cluster.isLocal(channelId)) {
+            cluster.forward(channelId, "/load",
+                    params("channelId", channelId, "userId", userId, "sessionId", sessionId, "packed", wire.isPacked(sessionId)));
+            return;
+        }
+
+        load(channelId, userId, sessionId);
+    }
+
+
+    /**
+     * Sets or moves the caller's viewport on a custom board. The tiles it newly covers arrive
+     * as a "viewport" message on the user queue, followed by changes inside it.
+     * @param channelId Channel ID
+     * @param userId User ID
+     * @param x left edge
+     * @param y top edge
+     * @param width viewport width
+     * @param height viewport height
+     * @param headers STOMP headers, for the session ID
+     */
+    @MessageMapping("/minesweeper/viewport/{channelId}/{userId}/{x}/{y}/{width}/{height}")
+    public void moveViewport(@DestinationVariable String channelId,
+                             @DestinationVariable String userId,
+                             @DestinationVariable int x,
+                             @DestinationVariable int y,
+                             @DestinationVariable int width,
+                             @DestinationVariable int height,
+                             SimpMessageHeaderAccessor headers) {
+        String sessionId = headers.getSessionId();
+
+        if(!cluster.isLocal(channelId)) {
+            cluster.watchRemote(sessionId, channelId);
+            cluster.forward(channelId, "/viewport", params("channelId", channelId, "sessionId", sessionId,
+                    "packed", wire.isPacked(sessionId), "x", x, "y", y, "width", width, "height", height));
+            return;
+        }
+
+        moveViewport(channelId, sessionId, x, y, width, height);
+    }
+
+
+    /**
+     * Resets game when user clicks new game button and publishes the new board to the channel
+     * @param channelId Channel ID
+     * @param userId User Id
+     * @param headers STOMP headers, for the session ID
+     */
+    @MessageMapping("/minesweeper/reset/{channelId}/{userId}")
+    public void resetGame(@DestinationVariable String channelId,
+                          @DestinationVariable String userId,
+                          SimpMessageHeaderAccessor headers) {
+        if(!throttle.admit(channelId, userId)) {
+            wire.toSession(headers.getSessionId(), THROTTLED);
+            return;
+        }
+
+        if(!cluster.isLocal(channelId)) {
+            cluster.forward(channelId, "/reset", params("channelId", channelId, "userId", userId));
+            return;
+        }
+
+        reset(channelId, userId);
+    }
+
+
+    /**
+     * Applies a click and publishes the result and the activity to the channel as one frame
+     * @param channelId Channel ID
+     * @param userId User ID
+     * @param clickType 1 to reveal, 2 to flag
+     * @param x x coordinate
+     * @param y y coordinate
+     * @param headers STOMP headers, for the session ID
+     */
+    @MessageMapping("/minesweeper/click/{channelId}/{userId}/{clickType}/{x}/{y}")
+    public void clickTile(@DestinationVariable String channelId,
+                          @DestinationVariable String userId,
+                          @DestinationVariable int clickType,
+                          @DestinationVariable int x,
+                          @DestinationVariable int y,
+                          SimpMessageHeaderAccessor headers) {
+        // no board has negative coordinates; the owner checks the upper bounds
+        if(x < 0 || y < 0) {
+            return;
+        }
+
+        // resets only come through the reset endpoint
+        if(clickType != ClickMailbox.REVEAL && clickType != ClickMailbox.FLAG) {
+            return;
+        }
+
+        if(!throttle.admit(channelId, userId)) {
+            wire.toSession(headers.getSessionId(), THROTTLED);
+            return;
+        }
+
+        if(!cluster.isLocal(channelId)) {
+            cluster.forward(channelId, "/click",
+                    params("channelId", channelId, "userId", userId, "clickType", clickType, "x", x, "y", y));
+            return;
+        }
+
+        click(channelId, userId, clickType, x, y);
+    }
+
+
+    /**
+     * Starts a game on this node
+     * @param channelId Channel ID
+     * @param level BEGINNER, INTERMEDIATE or EXPERT
+     * @param width custom board width
+     * @param height custom board height
+     * @param mines custom mine count
+     * @return ResponseEntity
+     */
+    ResponseEntity<String> start(String channelId, String level, Integer width, Integer height, Integer mines) {
+        // a node that owned the channel before this one joined may still hold its game
+        find(channelId);
+
+        if(width != null || height != null) {
+            if(width == null || height == null) {
+                return ResponseEntity.badRequest().body("Custom boards need both width and height.");
+            }
+
             try {
-                Game game = msService.startGame(channelId, MinesweeperService.Level.valueOf(level));
+                Game game = msService.startGame(channelId, width, height, mines);
+
                 if (game == null) {
-                    return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Error creating game.");
+                    return ResponseEntity.status(HttpStatus.CONFLICT).body(String.format("Game already exists for channel %s.", channelId));
                 }
 
                 return ResponseEntity.ok().build();
             }
             catch(IllegalArgumentException iae) {
-                return ResponseEntity.badRequest().body("Invalid level specified.");
+                return ResponseEntity.badRequest().body(iae.getMessage());
+            }
+        }
+
+        // attempt to start game
+        try {
+            Game game = msService.startGame(channelId, MinesweeperService.Level.valueOf(level));
+
+            // game already exists
+            if (game == null) {
+                return ResponseEntity.status(HttpStatus.CONFLICT).body(String.format("Game already exists for channel %s.", channelId));
             }
+
+            return ResponseEntity.ok().build();
         }
-        // game already exists
-        else {
-            return ResponseEntity.status(HttpStatus.CONFLICT).body(String.format("Game already exists for channel %s.", channelId));
+        catch(IllegalArgumentException iae) {
+            return ResponseEntity.badRequest().body("Invalid level specified.");
         }
     }
 
 
     /**
-     * Does the initial load of a game when client first connects to WS
+     * Sends the board to a joining session and tells the channel
      * @param channelId Channel ID
-     * @return Board
+     * @param userId User ID
+     * @param sessionId WebSocket session ID
      */
-    @MessageMapping("/minesweeper/load/{channelId}/{userId}")
-    @SendToUser("/queue/minesweeper")
-    public WSMessage loadGame(@DestinationVariable String channelId,
-                              @DestinationVariable String userId) {
+    void load(String channelId, String userId, String sessionId) {
+        Game game = find(channelId);
+
         // make sure game exists
-        if(!msService.gameExists(channelId)) {
-            return new WSMessage("error", "Game does not exist for channel.");
+        if(game == null) {
+            wire.toSession(sessionId, new WSMessage("error", "Game does not exist for channel."));
+            return;
         }
 
-        Game game = msService.getGame(channelId);
+        synchronized (game) {
+            // custom boards are too large to send whole; the client follows up with its viewport
+            if(viewports.isRouted(game)) {
+                String type = game.isGameOver() ? "loss" : "initial";
+                wire.toSession(sessionId, new WSMessage(type, "viewport", new Board(game.getWidth(), game.getHeight())));
+            }
+            else {
+                // joins between two clicks share one serialized board
+                wire.toSession(sessionId, joinCache.payload(channelId, game, wire.isPacked(sessionId)));
+            }
 
-        this.template.convertAndSend(String.format("/topic/minesweeper/%s", channelId), new WSMessage("log", String.format("%s has joined the game.", userId)));
+            frames.join(channelId, game, userId);
+            frames.commit(channelId);
+        }
+    }
+
+
+    /**
+     * Moves a session's viewport on a custom board held by this node
+     * @param channelId Channel ID
+     * @param sessionId WebSocket session ID
+     * @param x left edge
+     * @param y top edge
+     * @param width viewport width
+     * @param height viewport height
+     */
+    void moveViewport(String channelId, String sessionId, int x, int y, int width, int height) {
+        Game game = find(channelId);
 
-        if(game.isGameOver()) {
-            return new WSMessage("loss", null, game.getBoard());
+        if(game == null || !viewports.isRouted(game)) {
+            return;
         }
 
-        return new WSMessage("initial", null, game.getBoard());
+        synchronized (game) {
+            if(msService.isCurrent(channelId, game)) {
+                viewports.move(channelId, sessionId, game, x, y, width, height);
+            }
+        }
     }
 
 
     /**
-     * Resets game when user clicks new game button
+     * Resets a game held by this node
      * @param channelId Channel ID
-     * @param userId User Id
-     * @return Board
+     * @param userId User ID
      */
-    @MessageMapping("/minesweeper/reset/{channelId}/{userId}")
-    @SendTo("/topic/minesweeper/{channelId}")
-    public WSMessage resetGame(@DestinationVariable String channelId,
-                               @DestinationVariable String userId) {
-        // make sure game exists
-        if(!msService.gameExists(channelId)) {
-            return new WSMessage("error", "Game does not exist for channel.");
+    void reset(String channelId, String userId) {
+        boolean exists = find(channelId) != null;
+
+        // mailbox mode orders resets with the channel's clicks and publishes the board itself
+        if(mailbox.isEnabled() && exists) {
+            mailbox.submitReset(channelId, userId);
+            return;
         }
 
         Game game = msService.resetGame(channelId);
 
+        // make sure game exists
         if(game == null) {
-            return new WSMessage("error", "Unable to reset game!");
+            wire.toChannel(channelId, new WSMessage("error", "Game does not exist for channel."));
+            return;
         }
 
-        this.template.convertAndSend(String.format("/topic/minesweeper/%s", channelId), new WSMessage("log", String.format("Game restarted by %s.", userId)));
-
-        return new WSMessage("initial", null, game.getBoard());
+        synchronized (game) {
+            frames.reset(channelId, game, userId);
+            frames.commit(channelId);
+        }
     }
 
 
-    @MessageMapping("/minesweeper/click/{channelId}/{userId}/{clickType}/{x}/{y}")
-    @SendTo("/topic/minesweeper/{channelId}")
-    public WSMessage clickTile(@DestinationVariable String channelId,
-                               @DestinationVariable String userId,
-                               @DestinationVariable int clickType,
-                               @DestinationVariable int x,
-                               @DestinationVariable int y) {
+    /**
+     * Applies a click to a game held by this node
+     * @param channelId Channel ID
+     * @param userId User ID
+     * @param clickType 1 to reveal, 2 to flag
+     * @param x x coordinate
+     * @param y y coordinate
+     */
+    void click(String channelId, String userId, int clickType, int x, int y) {
+        Game game = find(channelId);
+
         // make sure game exists
-        if(!msService.gameExists(channelId)) {
-            return new WSMessage("error", "Game does not exist for channel.");
+        if(game == null) {
+            wire.toChannel(channelId, new WSMessage("error", "Game does not exist for channel."));
+            return;
         }
 
-        Game game = msService.getGame(channelId);
-
-        Integer clickResult = 0;
-
-        if(clickType == 1) {
-            clickResult = game.revealTile(x, y);
-            this.template.convertAndSend(String.format("/topic/minesweeper/%s", channelId), new WSMessage("log", String.format("%s revealed tile at %d,%d.", userId, x, y)));
+        // out of bounds clicks would otherwise end in an exception inside Game
+        if(!game.validPoint(x, y)) {
+            return;
         }
-        else if(clickType == 2) {
-            clickResult = game.flagTile(x, y);
-            this.template.convertAndSend(String.format("/topic/minesweeper/%s", channelId), new WSMessage("log", String.format("%s flagged tile at %d,%d.", userId, x, y)));
+
+        if(mailbox.isEnabled()) {
+            mailbox.submitClick(channelId, userId, clickType, x, y);
+            return;
         }
 
-        if(clickResult != null) {
-            // already clicked here
-            if (clickResult == -2) {
-                return null;
+        // clicks on the same channel are applied one at a time, in the order they take the lock
+        synchronized (game) {
+            // drop the click if the game was reset or ended while we waited
+            if(!msService.isCurrent(channelId, game)) {
+                return;
+            }
+
+            Integer clickResult;
+
+            if(clickType == ClickMailbox.REVEAL) {
+                clickResult = msService.revealTile(channelId, game, x, y);
             }
-            // update whole board
-            else if (clickResult == -3) {
-                return new WSMessage("initial", null, game.getBoard());
+            else if(clickType == ClickMailbox.FLAG) {
+                clickResult = msService.flagTile(channelId, game, x, y);
             }
-            // report loss
-            else if (clickResult == -4) {
-                this.template.convertAndSend(String.format("/topic/minesweeper/%s", channelId), new WSMessage("log", String.format("%s lost the game!", userId)));
-                return new WSMessage("loss", null, game.getBoard());
+            else {
+                return;
             }
+
+            frames.click(channelId, game, userId, clickType, x, y, clickResult);
+            frames.commit(channelId);
         }
+    }
 
-        return new WSMessage("update", null, new Tile(x, y, clickResult));
+
+    /**
+     * Looks up a channel's game, claiming it from another cluster node if needed
+     * @param channelId Channel ID
+     * @return Game object or null
+     */
+    private Game find(String channelId) {
+        Game game = msService.getGame(channelId);
+        return game != null ? game : cluster.claim(channelId);
     }
 }
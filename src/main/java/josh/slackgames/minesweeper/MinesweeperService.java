@@ -1,20 +1,150 @@
 package josh.slackgames.minesweeper;
 
+import josh.slackgames.minesweeper.objects.ChunkedGame;
 import josh.slackgames.minesweeper.objects.Game;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
-import java.util.HashMap;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
- * Stores games and their objects
+ * Stores games and their objects.
+ *
+ * Lookups are lock-free. Start, reset and end run under a lock striped by channel ID so
+ * their check-then-act is atomic without serializing unrelated channels. Game state itself
+ * is guarded by each Game's monitor; callers mutating or reading a game must hold it.
+ *
+ * A periodic sweep evicts games idle longer than their TTL (shorter for finished games), then
+ * evicts least recently used games, finished ones first, while over the game or byte budget.
+ * Games idle for a shorter while are hibernated: their cells are dropped and rebuilt from
+ * the seed on next use.
+ *
+ * Starts, resets, ends and state-changing clicks are recorded in the {@link GameJournal}
+ * under the same locks that apply them, and replayed from it on startup. Games in the
+ * journal's base snapshot stay encoded until their channel is first looked up.
  */
 @Service
 public class MinesweeperService {
-    private Map<String, Game> games = new HashMap<>();
+    private static final Logger LOG = LoggerFactory.getLogger(MinesweeperService.class);
 
+    private static final int LOCK_STRIPES = 64;
+
+    // sends of a game handed off to another node before one holds its monitor throughout
+    private static final int HANDOFF_ATTEMPTS = 3;
+
+    // approximate map node and key string overhead per registered game
+    private static final int ENTRY_OVERHEAD_BYTES = 80;
+
+    // largest side the journal can record, and the mine density used when none is given
+    private static final int MAX_CUSTOM_SIDE = 65535;
+    private static final double DEFAULT_CUSTOM_DENSITY = 0.15;
+
+    private final GameJournal journal;
+    private final GameMetrics metrics;
+    private final Map<String, Game> games = new ConcurrentHashMap<>();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final List<Consumer<String>> removalListeners = new CopyOnWriteArrayList<>();
+    private final Object compactLock = new Object();
+
+    // games recovered from the journal base that haven't been looked up yet
+    private volatile GameSnapshot snapshot;
+
+    private final AtomicLong idleEvictions = new AtomicLong();
+    private final AtomicLong finishedEvictions = new AtomicLong();
+    private final AtomicLong budgetEvictions = new AtomicLong();
+    private volatile long estimatedBytes = 0;
+    private volatile int hibernatingGames = 0;
+    private volatile int finishedGames = 0;
+
+    @Value("${minesweeper.eviction.idle-ttl-minutes:1440}")
+    private long idleTtlMinutes;
+
+    @Value("${minesweeper.eviction.finished-ttl-minutes:30}")
+    private long finishedTtlMinutes;
+
+    @Value("${minesweeper.eviction.max-games:0}")
+    private int maxGames;
+
+    @Value("${minesweeper.eviction.max-bytes:0}")
+    private long maxBytes;
+
+    @Value("${minesweeper.hibernate.idle-minutes:5}")
+    private long hibernateIdleMinutes;
+
+    @Value("${minesweeper.custom.max-cells:16777216}")
+    private long maxCustomCells;
+
+    @Autowired
+    public MinesweeperService(GameJournal journal, GameMetrics metrics) {
+        this.journal = journal;
+        this.metrics = metrics;
+
+        for(int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Difficulty levels and their board dimensions.
+     *
+     * Estimated retained heap per game (see {@link Game#estimateBytes(int, int)}):
+     * BEGINNER ~168 bytes, INTERMEDIATE ~360 bytes, EXPERT ~584 bytes.
+     * This excludes the registry entry and channel ID string.
+     */
     public enum Level {
-        BEGINNER, INTERMEDIATE, EXPERT
+        BEGINNER(8, 8, 10),
+        INTERMEDIATE(16, 16, 40),
+        EXPERT(30, 16, 99);
+
+        private final int width;
+        private final int height;
+        private final int numMines;
+
+        Level(int width, int height, int numMines) {
+            this.width = width;
+            this.height = height;
+            this.numMines = numMines;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getNumMines() {
+            return numMines;
+        }
+
+        /**
+         * Estimated heap retained by one game at this level
+         * @return bytes
+         */
+        public long getEstimatedGameBytes() {
+            return Game.estimateBytes(width, height);
+        }
     }
 
 
@@ -24,7 +154,8 @@ public class MinesweeperService {
      * @return boolean
      */
     boolean gameExists(String channelId) {
-        return games.containsKey(channelId);
+        GameSnapshot pending = snapshot;
+        return games.containsKey(channelId) || (pending != null && pending.contains(channelId));
     }
 
 
@@ -35,14 +166,57 @@ public class MinesweeperService {
      * @return Game object
      */
     Game startGame(String channelId, Level level) {
-        if(gameExists(channelId)) {
-            return null;
+        return startGame(channelId, () -> new Game(level));
+    }
+
+
+    /**
+     * Starts a game on a custom board, stored in chunks so only explored areas use memory
+     * @param channelId Channel to start game for
+     * @param width board width
+     * @param height board height
+     * @param numMines number of mines, or null for the default density
+     * @return Game object or null if a game already exists
+     * @throws IllegalArgumentException if the board is too small, too large or too dense
+     */
+    Game startGame(String channelId, int width, int height, Integer numMines) {
+        long cells = (long) width * height;
+        int mines = numMines != null ? numMines : (int) Math.round(cells * DEFAULT_CUSTOM_DENSITY);
+
+        if(width < Level.BEGINNER.getWidth() || height < Level.BEGINNER.getHeight()) {
+            throw new IllegalArgumentException("Board must be at least 8x8.");
         }
 
-        Game game = new Game(level);
-        games.put(channelId, game);
+        if(width > MAX_CUSTOM_SIDE || height > MAX_CUSTOM_SIDE || cells > maxCustomCells) {
+            throw new IllegalArgumentException(String.format("Board must have at most %d tiles.", maxCustomCells));
+        }
 
-        return game;
+        if(mines < 1 || mines > cells / 2) {
+            throw new IllegalArgumentException("Mines must cover between one tile and half the board.");
+        }
+
+        return startGame(channelId, () -> new ChunkedGame(width, height, mines, ThreadLocalRandom.current().nextLong()));
+    }
+
+
+    /**
+     * Registers a new game unless the channel already has one
+     * @param channelId Channel ID
+     * @param factory creates the game
+     * @return Game object or null if a game already exists
+     */
+    private Game startGame(String channelId, Supplier<Game> factory) {
+        synchronized (lockFor(channelId)) {
+            if(gameExists(channelId)) {
+                return null;
+            }
+
+            Game game = factory.get();
+            games.put(channelId, game);
+            journal.logStart(channelId, game);
+
+            return game;
+        }
     }
 
 
@@ -52,16 +226,21 @@ public class MinesweeperService {
      * @return Game object
      */
     Game resetGame(String channelId) {
-        if(!gameExists(channelId)) {
-            return null;
-        }
+        synchronized (lockFor(channelId)) {
+            Game oldGame = getGame(channelId);
+            if(oldGame == null) {
+                return null;
+            }
 
-        Game oldGame = getGame(channelId);
-        Game newGame = new Game(oldGame.getLevel());
-        endGame(channelId);
-        games.put(channelId, newGame);
+            // wait for any in-flight click on the old game before replacing it
+            synchronized (oldGame) {
+                Game newGame = oldGame.renew(ThreadLocalRandom.current().nextLong());
+                games.put(channelId, newGame);
+                journal.logReset(channelId, newGame.getSeed());
 
-        return newGame;
+                return newGame;
+            }
+        }
     }
 
 
@@ -70,9 +249,184 @@ public class MinesweeperService {
      * @param channelId Channel ID
      */
     void endGame(String channelId) {
-        if(gameExists(channelId)) {
-            games.remove(channelId);
+        synchronized (lockFor(channelId)) {
+            GameSnapshot pending = snapshot;
+            boolean removed = games.remove(channelId) != null;
+
+            if(pending != null && pending.remove(channelId)) {
+                removed = true;
+            }
+
+            if(!removed) {
+                return;
+            }
+
+            journal.logEnd(channelId);
         }
+
+        removalListeners.forEach(listener -> listener.accept(channelId));
+    }
+
+
+    /**
+     * Sends a game being handed off to another cluster node
+     */
+    interface Handoff {
+        /**
+         * @param encoded game encoded by {@link Game#writeSnapshot(ByteBuffer)}
+         * @param replace true if an earlier attempt already sent an older copy, which this one overwrites
+         * @return true once the other node holds the game
+         */
+        boolean send(byte[] encoded, boolean replace);
+    }
+
+
+    /**
+     * Takes over a game handed off by another cluster node, unless the channel already has one here
+     * @param channelId Channel ID
+     * @param encoded game encoded by {@link Game#writeSnapshot(ByteBuffer)}
+     * @param replace true to overwrite a game the channel already has here
+     * @return true if the game was adopted
+     * @throws IllegalArgumentException if the encoded game is malformed
+     */
+    boolean adoptGame(String channelId, byte[] encoded, boolean replace) {
+        Game.checkSnapshot(encoded, maxCustomCells);
+
+        Game game;
+        try {
+            ByteBuffer in = ByteBuffer.wrap(encoded);
+            game = Game.readSnapshot(in);
+
+            if(in.hasRemaining()) {
+                throw new IllegalArgumentException("Game snapshot has trailing bytes");
+            }
+        }
+        catch(BufferUnderflowException e) {
+            throw new IllegalArgumentException("Game snapshot is truncated", e);
+        }
+
+        synchronized (lockFor(channelId)) {
+            Game replaced = lookup(channelId);
+
+            if(replaced == null) {
+                games.put(channelId, game);
+                journal.logAdopt(channelId, encoded);
+                return true;
+            }
+
+            if(!replace) {
+                return false;
+            }
+
+            // like a reset, wait for any in-flight click on the older copy before replacing it
+            synchronized (replaced) {
+                games.put(channelId, game);
+                journal.logAdopt(channelId, encoded);
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Hands a game off to another cluster node, removing it here once the other node holds it.
+     *
+     * The game is encoded under its monitor but sent without any lock, so clicks carry on
+     * meanwhile. If one lands before the game is removed, the newer state is sent again over
+     * the copy already there. The last attempt holds the game's monitor for the send, so a
+     * busy game still moves, stalling only its own clicks.
+     * @param channelId Channel ID
+     * @param handoff sends the encoded game
+     * @return true if the game was handed off
+     */
+    boolean handOffGame(String channelId, Handoff handoff) {
+        boolean replace = false;
+
+        for(int attempt = 1; ; attempt++) {
+            Game game = lookup(channelId);
+            if(game == null) {
+                return false;
+            }
+
+            if(attempt == HANDOFF_ATTEMPTS) {
+                synchronized (game) {
+                    if(!isCurrent(channelId, game) || !handoff.send(encode(game), replace)) {
+                        return false;
+                    }
+
+                    release(channelId, game);
+                }
+                break;
+            }
+
+            byte[] encoded;
+            int version;
+            synchronized (game) {
+                if(!isCurrent(channelId, game)) {
+                    continue;
+                }
+                encoded = encode(game);
+                version = game.getVersion();
+            }
+
+            if(!handoff.send(encoded, replace)) {
+                return false;
+            }
+            replace = true;
+
+            synchronized (game) {
+                if(isCurrent(channelId, game) && game.getVersion() == version) {
+                    release(channelId, game);
+                    break;
+                }
+            }
+        }
+
+        removalListeners.forEach(listener -> listener.accept(channelId));
+
+        return true;
+    }
+
+
+    /**
+     * Encodes a game. Caller must hold the game's monitor.
+     * @param game Game object
+     * @return snapshot bytes
+     */
+    private static byte[] encode(Game game) {
+        ByteBuffer encoded = ByteBuffer.allocate(game.snapshotSize());
+        game.writeSnapshot(encoded);
+        return encoded.array();
+    }
+
+
+    /**
+     * Drops a game that has moved to another node. Caller must hold the game's monitor, which
+     * keeps resets and adoptions from replacing it, so no stripe lock is needed.
+     * @param channelId Channel ID
+     * @param game Game object
+     */
+    private void release(String channelId, Game game) {
+        // journaled first, so a game started after the removal is never ended on replay
+        journal.logEnd(channelId);
+        games.remove(channelId, game);
+    }
+
+
+    /**
+     * Lists the channels with a game on this node, decoded or not
+     * @return channel IDs
+     */
+    List<String> getChannelIds() {
+        List<String> channelIds = new ArrayList<>(games.keySet());
+        GameSnapshot pending = snapshot;
+
+        if(pending != null) {
+            channelIds.addAll(pending.channelIds());
+        }
+
+        return channelIds;
     }
 
 
@@ -82,6 +436,409 @@ public class MinesweeperService {
      * @return Game object or null
      */
     Game getGame(String channelId) {
-        return games.getOrDefault(channelId, null);
+        Game game = lookup(channelId);
+
+        if(game != null) {
+            game.touch();
+        }
+
+        return game;
+    }
+
+
+    /**
+     * Finds a channel's game, decoding it from the snapshot on first use
+     * @param channelId Channel ID
+     * @return Game object or null
+     */
+    private Game lookup(String channelId) {
+        Game game = games.get(channelId);
+
+        if(game != null || snapshot == null) {
+            return game;
+        }
+
+        synchronized (lockFor(channelId)) {
+            game = games.get(channelId);
+            GameSnapshot pending = snapshot;
+
+            if(game == null && pending != null) {
+                game = pending.take(channelId, taken -> games.put(channelId, taken));
+            }
+
+            return game;
+        }
+    }
+
+
+    /**
+     * Checks that a game is still the live game for its channel, e.g. after waiting on its monitor
+     * @param channelId Channel ID
+     * @param game Game object
+     * @return boolean
+     */
+    boolean isCurrent(String channelId, Game game) {
+        return games.get(channelId) == game;
+    }
+
+
+    /**
+     * Reveals a tile and journals the click if it changed anything. Caller must hold the game's monitor.
+     * @param channelId Channel ID
+     * @param game Game object
+     * @param x x coordinate
+     * @param y y coordinate
+     * @return result of {@link Game#revealTile(int, int)}
+     */
+    Integer revealTile(String channelId, Game game, int x, int y) {
+        boolean laidField = !game.hasField();
+        long started = System.nanoTime();
+        Integer result = game.revealTile(x, y);
+        metrics.reveal(game, result, System.nanoTime() - started, laidField);
+
+        if(result == null || result != -2) {
+            journal.logReveal(channelId, x, y);
+        }
+
+        return result;
+    }
+
+
+    /**
+     * Toggles a flag and journals the resulting state. Caller must hold the game's monitor.
+     * @param channelId Channel ID
+     * @param game Game object
+     * @param x x coordinate
+     * @param y y coordinate
+     * @return result of {@link Game#flagTile(int, int)}
+     */
+    Integer flagTile(String channelId, Game game, int x, int y) {
+        long started = System.nanoTime();
+        Integer result = game.flagTile(x, y);
+        metrics.flag(game, System.nanoTime() - started);
+
+        if(result == null || result != -2) {
+            journal.logFlag(channelId, x, y, result != null);
+        }
+
+        return result;
+    }
+
+
+    /**
+     * Rebuilds the registry from the journal before any requests are served
+     * @throws IOException if the journal can't be read or reopened
+     */
+    @PostConstruct
+    public void recover() throws IOException {
+        journal.recover(new GameJournal.Replayer() {
+            @Override
+            public void snapshot(GameSnapshot base) {
+                snapshot = base;
+            }
+
+            @Override
+            public void start(String channelId, Level level, long seed) {
+                if(snapshot != null) {
+                    snapshot.remove(channelId);
+                }
+
+                games.put(channelId, new Game(level, seed));
+            }
+
+            @Override
+            public void startCustom(String channelId, int width, int height, int numMines, long seed) {
+                if(snapshot != null) {
+                    snapshot.remove(channelId);
+                }
+
+                games.put(channelId, new ChunkedGame(width, height, numMines, seed));
+            }
+
+            @Override
+            public void reset(String channelId, long seed) {
+                Game game = lookup(channelId);
+                if(game != null) {
+                    games.put(channelId, game.renew(seed));
+                }
+            }
+
+            @Override
+            public void reveal(String channelId, int x, int y) {
+                Game game = lookup(channelId);
+                if(game != null && game.validPoint(x, y)) {
+                    game.revealTile(x, y);
+                }
+            }
+
+            @Override
+            public void flag(String channelId, int x, int y, boolean flagged) {
+                Game game = lookup(channelId);
+                if(game != null && game.validPoint(x, y) && game.isFlagged(x, y) != flagged) {
+                    game.flagTile(x, y);
+                }
+            }
+
+            @Override
+            public void end(String channelId) {
+                games.remove(channelId);
+
+                if(snapshot != null) {
+                    snapshot.remove(channelId);
+                }
+            }
+
+            @Override
+            public void adopt(String channelId, Game game) {
+                if(snapshot != null) {
+                    snapshot.remove(channelId);
+                }
+
+                games.put(channelId, game);
+            }
+        });
+
+        int recovered = games.size() + (snapshot == null ? 0 : snapshot.size());
+        if(recovered > 0) {
+            LOG.info("Recovered {} games from the journal, {} decoded", recovered, games.size());
+        }
+    }
+
+
+    /**
+     * Compacts the journal once enough has been appended since the last compaction
+     */
+    @Scheduled(fixedDelayString = "${minesweeper.journal.compact-check-ms:60000}")
+    public void compactJournal() {
+        if(journal.needsCompaction()) {
+            compact();
+        }
+    }
+
+
+    /**
+     * Writes every game to a final snapshot so the next startup maps it instead of replaying
+     */
+    @PreDestroy
+    public void shutdown() {
+        if(journal.isRunning()) {
+            compact();
+        }
+    }
+
+
+    /**
+     * Compacts the journal into a new base snapshot and switches lazy loading over to it
+     */
+    private void compact() {
+        synchronized (compactLock) {
+            try {
+                GameSnapshot previous = snapshot;
+                GameSnapshot next = journal.compact(games, previous);
+
+                if(previous == null) {
+                    // everything in the new base is already live
+                    next.retain(Collections.emptySet());
+                }
+                else {
+                    previous.handOff(next);
+                    previous.close();
+                }
+
+                snapshot = next;
+            }
+            catch(IOException e) {
+                LOG.error("Failed to compact the game journal", e);
+            }
+        }
+    }
+
+
+    /**
+     * Registers a callback run with the channel ID whenever a game is ended or evicted
+     * @param listener callback
+     */
+    void addRemovalListener(Consumer<String> listener) {
+        removalListeners.add(listener);
+    }
+
+
+    /**
+     * Evicts expired games, hibernates idle ones, then evicts least recently used games while over budget
+     */
+    @Scheduled(fixedDelayString = "${minesweeper.eviction.interval-ms:60000}")
+    public void evictGames() {
+        long now = System.currentTimeMillis();
+        long idleCutoff = now - TimeUnit.MINUTES.toMillis(idleTtlMinutes);
+        long finishedCutoff = now - TimeUnit.MINUTES.toMillis(finishedTtlMinutes);
+        long hibernateCutoff = now - TimeUnit.MINUTES.toMillis(hibernateIdleMinutes);
+        List<Map.Entry<String, Game>> retained = new ArrayList<>();
+        long bytes = 0;
+        int hibernating = 0;
+        int finished = 0;
+
+        for(Map.Entry<String, Game> entry : games.entrySet()) {
+            Game game = entry.getValue();
+            long cutoff = game.isFinished() ? finishedCutoff : idleCutoff;
+
+            if(game.getLastAccessed() < cutoff && evict(entry.getKey(), game, cutoff)) {
+                (game.isFinished() ? finishedEvictions : idleEvictions).incrementAndGet();
+                continue;
+            }
+
+            if(game.getLastAccessed() < hibernateCutoff) {
+                synchronized (game) {
+                    if(game.getLastAccessed() < hibernateCutoff) {
+                        game.hibernate();
+                    }
+                }
+            }
+
+            if(game.isHibernating()) {
+                hibernating++;
+            }
+
+            if(game.isFinished()) {
+                finished++;
+            }
+
+            retained.add(entry);
+            bytes += estimateEntryBytes(entry.getKey(), game);
+        }
+
+        boolean overGames = maxGames > 0 && retained.size() > maxGames;
+        boolean overBytes = maxBytes > 0 && bytes > maxBytes;
+
+        if(overGames || overBytes) {
+            // finished games go first, then least recently used
+            retained.sort(Comparator
+                    .comparing((Map.Entry<String, Game> e) -> !e.getValue().isFinished())
+                    .thenComparingLong(e -> e.getValue().getLastAccessed()));
+
+            int count = retained.size();
+            for(Map.Entry<String, Game> entry : retained) {
+                if(!(maxGames > 0 && count > maxGames) && !(maxBytes > 0 && bytes > maxBytes)) {
+                    break;
+                }
+
+                if(evict(entry.getKey(), entry.getValue(), Long.MAX_VALUE)) {
+                    budgetEvictions.incrementAndGet();
+                    count--;
+                    bytes -= estimateEntryBytes(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        GameSnapshot pending = snapshot;
+        if(pending != null) {
+            evictPending(pending, idleCutoff, false, idleEvictions);
+            evictPending(pending, finishedCutoff, true, finishedEvictions);
+        }
+
+        estimatedBytes = bytes;
+        hibernatingGames = hibernating;
+        finishedGames = finished;
+    }
+
+
+    public int getGameCount() {
+        return games.size();
+    }
+
+    public int getSnapshotGameCount() {
+        GameSnapshot pending = snapshot;
+        return pending == null ? 0 : pending.size();
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    public int getHibernatingGames() {
+        return hibernatingGames;
+    }
+
+    public int getFinishedGames() {
+        return finishedGames;
+    }
+
+    public long getIdleEvictions() {
+        return idleEvictions.get();
+    }
+
+    public long getFinishedEvictions() {
+        return finishedEvictions.get();
+    }
+
+    public long getBudgetEvictions() {
+        return budgetEvictions.get();
+    }
+
+
+    /**
+     * Removes a game if it is still registered and was not used since the cutoff
+     * @param channelId Channel ID
+     * @param game Game object seen by the sweep
+     * @param cutoff last access time the game must be older than
+     * @return true if the game was evicted
+     */
+    private boolean evict(String channelId, Game game, long cutoff) {
+        synchronized (lockFor(channelId)) {
+            if(games.get(channelId) != game || game.getLastAccessed() >= cutoff) {
+                return false;
+            }
+
+            games.remove(channelId);
+            journal.logEnd(channelId);
+        }
+
+        removalListeners.forEach(listener -> listener.accept(channelId));
+
+        return true;
+    }
+
+
+    /**
+     * Evicts expired games that are still encoded in the snapshot, without decoding them
+     * @param pending snapshot
+     * @param cutoff last access time the games must be older than
+     * @param finished true for won or lost games, false for games in progress
+     * @param counter eviction counter to increment
+     */
+    private void evictPending(GameSnapshot pending, long cutoff, boolean finished, AtomicLong counter) {
+        for(String channelId : pending.expired(cutoff, finished)) {
+            synchronized (lockFor(channelId)) {
+                if(!pending.remove(channelId)) {
+                    continue;
+                }
+
+                journal.logEnd(channelId);
+            }
+
+            counter.incrementAndGet();
+            removalListeners.forEach(listener -> listener.accept(channelId));
+        }
+    }
+
+
+    /**
+     * Estimates the heap retained by a registry entry
+     * @param channelId Channel ID
+     * @param game Game object
+     * @return bytes
+     */
+    private static long estimateEntryBytes(String channelId, Game game) {
+        return ENTRY_OVERHEAD_BYTES + 2L * channelId.length() + game.estimateBytes();
+    }
+
+
+    /**
+     * Picks the registry lock stripe for a channel
+     * @param channelId Channel ID
+     * @return lock object
+     */
+    private Object lockFor(String channelId) {
+        int h = channelId.hashCode();
+        return locks[(h ^ (h >>> 16)) & (LOCK_STRIPES - 1)];
     }
 }
@@ -0,0 +1,80 @@
+package josh.slackgames.minesweeper;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.stereotype.Component;
+
+/**
+ * Counts the messages and bytes sent to WebSocket clients, on the client outbound channel.
+ *
+ * Destinations are grouped by kind rather than by channel, which would give every channel its
+ * own meter: channel topics, their /packed siblings, per-session queues, and anything else.
+ * The summary's count is the message rate and its total the bytes.
+ */
+@Component
+public class OutboundMetrics implements ChannelInterceptor {
+
+    private static final String TOPIC_PREFIX = "/topic/minesweeper/";
+    private static final String PACKED_SUFFIX = "/packed";
+
+    private final DistributionSummary channel;
+    private final DistributionSummary packed;
+    private final DistributionSummary session;
+    private final DistributionSummary other;
+
+
+    @Autowired
+    public OutboundMetrics(MeterRegistry registry) {
+        this.channel = summary(registry, "channel");
+        this.packed = summary(registry, "packed");
+        this.session = summary(registry, "session");
+        this.other = summary(registry, "other");
+    }
+
+
+    /**
+     * Records a message on its way to a client
+     * @param message outbound message
+     * @param messageChannel client outbound channel
+     * @return the message, unchanged
+     */
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel messageChannel) {
+        String destination = SimpMessageHeaderAccessor.getDestination(message.getHeaders());
+        Object payload = message.getPayload();
+
+        // connects, receipts and heartbeats have no destination
+        if(destination == null || !(payload instanceof byte[])) {
+            return message;
+        }
+
+        DistributionSummary kind;
+        if(destination.startsWith(TOPIC_PREFIX)) {
+            kind = destination.endsWith(PACKED_SUFFIX) ? packed : channel;
+        }
+        else if(destination.startsWith("/queue/") || destination.startsWith("/user/")) {
+            kind = session;
+        }
+        else {
+            kind = other;
+        }
+
+        kind.record(((byte[]) payload).length);
+
+        return message;
+    }
+
+
+    private static DistributionSummary summary(MeterRegistry registry, String kind) {
+        return DistributionSummary.builder("minesweeper.outbound")
+                .description("Messages sent to WebSocket clients, and their size")
+                .baseUnit("bytes")
+                .tag("destination", kind)
+                .register(registry);
+    }
+}
@@ -0,0 +1,271 @@
+package josh.slackgames.minesweeper;
+
+import josh.slackgames.WSMessage;
+import josh.slackgames.minesweeper.objects.Board;
+import josh.slackgames.minesweeper.objects.Game;
+import josh.slackgames.minesweeper.objects.Tile;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+
+/**
+ * Viewport subscriptions for custom boards, which are too large to send whole.
+ *
+ * Each session watches a rectangle, snapped outward to 32x32 buckets. Every channel keeps
+ * an index from bucket to the sessions watching it, so routing a change is one map lookup
+ * per tile rather than a filter per subscriber. Moving a viewport only sends the tiles of
+ * buckets it newly covers. Fixed-level boards are small and keep using the channel topic.
+ */
+@Component
+public class ViewportRegistry {
+
+    static final int BUCKET_BITS = 5;
+    static final int BUCKET_SIZE = 1 << BUCKET_BITS;
+
+    // largest viewport side, in tiles, before snapping
+    private static final int MAX_VIEWPORT_SIDE = 256;
+
+    private final WireEncoding wire;
+    private final Map<String, Viewports> channels = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> sessionChannels = new ConcurrentHashMap<>();
+
+
+    @Autowired
+    public ViewportRegistry(MinesweeperService msService, WireEncoding wire) {
+        this.wire = wire;
+
+        msService.addRemovalListener(channels::remove);
+    }
+
+
+    /**
+     * Checks if a game's board updates are routed by viewport instead of broadcast
+     * @param game Game object
+     * @return boolean
+     */
+    boolean isRouted(Game game) {
+        return game.getLevel() == null;
+    }
+
+
+    /**
+     * Sets or moves a session's viewport and sends it the tiles it newly covers.
+     * Caller must hold the game's monitor, so no change falls between the tiles and the subscription.
+     * @param channelId Channel ID
+     * @param sessionId WebSocket session ID
+     * @param game Game object
+     * @param x left edge
+     * @param y top edge
+     * @param width viewport width
+     * @param height viewport height
+     */
+    void move(String channelId, String sessionId, Game game, int x, int y, int width, int height) {
+        int left = Math.min(Math.max(x, 0), game.getWidth() - 1);
+        int top = Math.min(Math.max(y, 0), game.getHeight() - 1);
+        int right = Math.min(left + Math.max(1, Math.min(width, MAX_VIEWPORT_SIDE)), game.getWidth()) - 1;
+        int bottom = Math.min(top + Math.max(1, Math.min(height, MAX_VIEWPORT_SIDE)), game.getHeight()) - 1;
+        int[] rect = new int[] { left >> BUCKET_BITS, top >> BUCKET_BITS, right >> BUCKET_BITS, bottom >> BUCKET_BITS };
+
+        Viewports viewports = channels.computeIfAbsent(channelId, id -> new Viewports(game.getWidth(), game.getHeight()));
+        int[] old = viewports.move(sessionId, rect);
+        sessionChannels.computeIfAbsent(sessionId, id -> ConcurrentHashMap.newKeySet()).add(channelId);
+
+        Board board = new Board(game.getWidth(), game.getHeight());
+        for(int by = rect[1]; by <= rect[3]; by++) {
+            for(int bx = rect[0]; bx <= rect[2]; bx++) {
+                if(old == null || bx < old[0] || bx > old[2] || by < old[1] || by > old[3]) {
+                    game.getBoard(bx << BUCKET_BITS, by << BUCKET_BITS, BUCKET_SIZE, BUCKET_SIZE)
+                            .getTiles()
+                            .forEach(board::addTile);
+                }
+            }
+        }
+
+        String snapped = String.format("%d,%d,%d,%d",
+                rect[0] << BUCKET_BITS,
+                rect[1] << BUCKET_BITS,
+                (rect[2] - rect[0] + 1) << BUCKET_BITS,
+                (rect[3] - rect[1] + 1) << BUCKET_BITS);
+
+        wire.toSession(sessionId, new WSMessage("viewport", snapped, board));
+    }
+
+
+    /**
+     * Sends a board message to the channel topic, or by viewport for custom boards
+     * @param channelId Channel ID
+     * @param game Game the message is about
+     * @param message message carrying a Board
+     */
+    void publish(String channelId, Game game, WSMessage message) {
+        if(isRouted(game)) {
+            route(channelId, message);
+        }
+        else {
+            wire.toChannel(channelId, message);
+        }
+    }
+
+
+    /**
+     * Sends a board message to the sessions whose viewports contain its tiles. Initial and
+     * loss messages reach every session, even those with nothing in view.
+     * @param channelId Channel ID
+     * @param message message carrying a Board
+     */
+    private void route(String channelId, WSMessage message) {
+        Viewports viewports = channels.get(channelId);
+        if(viewports == null) {
+            return;
+        }
+
+        boolean everyone = "initial".equals(message.getType()) || "loss".equals(message.getType());
+        Object contents = message.getContents();
+
+        List<Tile> tiles = contents instanceof Board ? ((Board) contents).getTiles() : Collections.emptyList();
+        Map<String, Board> boards = viewports.route(tiles, everyone);
+
+        for(Map.Entry<String, Board> entry : boards.entrySet()) {
+            wire.toSession(entry.getKey(), new WSMessage(message.getType(), message.getMessage(), entry.getValue()));
+        }
+    }
+
+
+    /**
+     * Drops a session's viewport on one channel, e.g. when a session on another cluster node disconnects
+     * @param channelId Channel ID
+     * @param sessionId WebSocket session ID
+     */
+    void leave(String channelId, String sessionId) {
+        Viewports viewports = channels.get(channelId);
+        if(viewports != null) {
+            viewports.remove(sessionId);
+        }
+    }
+
+
+    @EventListener
+    public void onDisconnect(SessionDisconnectEvent event) {
+        Set<String> watched = sessionChannels.remove(event.getSessionId());
+        if(watched == null) {
+            return;
+        }
+
+        for(String channelId : watched) {
+            Viewports viewports = channels.get(channelId);
+            if(viewports != null) {
+                viewports.remove(event.getSessionId());
+            }
+        }
+    }
+
+
+    /**
+     * Viewports of one channel and the bucket index over them
+     */
+    private static final class Viewports {
+        private final int width;
+        private final int height;
+        private final int bucketsWide;
+        private final Map<Integer, Set<String>> buckets = new HashMap<>();
+        private final Map<String, int[]> sessions = new HashMap<>();
+
+        private Viewports(int width, int height) {
+            this.width = width;
+            this.height = height;
+            this.bucketsWide = (width + BUCKET_SIZE - 1) >> BUCKET_BITS;
+        }
+
+        /**
+         * Replaces a session's bucket rectangle, touching only the buckets that changed
+         * @param sessionId session
+         * @param rect inclusive bucket rectangle: x0, y0, x1, y1
+         * @return previous rectangle or null
+         */
+        private synchronized int[] move(String sessionId, int[] rect) {
+            int[] old = sessions.put(sessionId, rect);
+
+            if(old != null) {
+                forEachBucket(old, rect, bucket -> {
+                    Set<String> watchers = buckets.get(bucket);
+                    watchers.remove(sessionId);
+                    if(watchers.isEmpty()) {
+                        buckets.remove(bucket);
+                    }
+                });
+            }
+
+            forEachBucket(rect, old, bucket -> buckets.computeIfAbsent(bucket, b -> new HashSet<>()).add(sessionId));
+
+            return old;
+        }
+
+        private synchronized void remove(String sessionId) {
+            int[] old = sessions.remove(sessionId);
+
+            if(old != null) {
+                forEachBucket(old, null, bucket -> {
+                    Set<String> watchers = buckets.get(bucket);
+                    watchers.remove(sessionId);
+                    if(watchers.isEmpty()) {
+                        buckets.remove(bucket);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Splits tiles into one board per watching session
+         * @param tiles tiles to route
+         * @param everyone include sessions with no tiles in view
+         * @return boards by session ID
+         */
+        private synchronized Map<String, Board> route(List<Tile> tiles, boolean everyone) {
+            Map<String, Board> boards = new HashMap<>();
+
+            if(everyone) {
+                for(String sessionId : sessions.keySet()) {
+                    boards.put(sessionId, new Board(width, height));
+                }
+            }
+
+            for(Tile tile : tiles) {
+                Set<String> watchers = buckets.get(bucket(tile));
+                if(watchers == null) {
+                    continue;
+                }
+
+                for(String sessionId : watchers) {
+                    boards.computeIfAbsent(sessionId, id -> new Board(width, height)).addTile(tile);
+                }
+            }
+
+            return boards;
+        }
+
+        private int bucket(Tile tile) {
+            return (tile.getY() >> BUCKET_BITS) * bucketsWide + (tile.getX() >> BUCKET_BITS);
+        }
+
+        /**
+         * Visits the buckets in one rectangle that are not in another
+         * @param rect rectangle to visit
+         * @param except rectangle to skip, or null
+         * @param action bucket callback
+         */
+        private void forEachBucket(int[] rect, int[] except, IntConsumer action) {
+            for(int by = rect[1]; by <= rect[3]; by++) {
+                for(int bx = rect[0]; bx <= rect[2]; bx++) {
+                    if(except == null || bx < except[0] || bx > except[2] || by < except[1] || by > except[3]) {
+                        action.accept(by * bucketsWide + bx);
+                    }
+                }
+            }
+        }
+    }
+}
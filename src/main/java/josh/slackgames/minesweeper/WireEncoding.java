@@ -0,0 +1,235 @@
+package josh.slackgames.minesweeper;
+
+import josh.slackgames.WSMessage;
+import josh.slackgames.minesweeper.objects.Board;
+import josh.slackgames.minesweeper.objects.PackedBoard;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.messaging.support.MessageHeaderAccessor;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeTypeUtils;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Negotiates and applies the board encoding of each WebSocket session.
+ *
+ * JSON is the default. A client sending the STOMP header board-encoding:packed on CONNECT
+ * gets boards as {@link PackedBoard} instead. Its subscriptions to channel topics are moved
+ * to a /packed sibling topic, which is only published to while someone subscribes to it, so
+ * JSON-only channels pay nothing. Behind a broker relay the subscribers may be on another
+ * instance, so the sibling is always published. All minesweeper messages for a channel topic
+ * or a session's user queue go through this class.
+ */
+@Component
+public class WireEncoding implements ChannelInterceptor {
+
+    static final String HEADER = "board-encoding";
+    static final String PACKED = "packed";
+
+    private static final String TOPIC_PREFIX = "/topic/minesweeper/";
+    private static final String PACKED_SUFFIX = "/packed";
+    private static final String USER_QUEUE = "/queue/minesweeper";
+
+    // full boards above this size are sent as tile lists
+    private static final int MAX_PACKED_CELLS = 1 << 16;
+
+    private final SimpMessagingTemplate template;
+    private final boolean relayed;
+    private final Set<String> packedSessions = ConcurrentHashMap.newKeySet();
+    private final Map<String, Map<String, String>> subscriptions = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> packedSubscribers = new ConcurrentHashMap<>();
+
+
+    // lazy because this interceptor is itself part of the broker configuration the template comes from
+    @Autowired
+    public WireEncoding(@Lazy SimpMessagingTemplate template,
+                        @Value("${minesweeper.broker.mode:simple}") String brokerMode) {
+        this.template = template;
+        this.relayed = "relay".equalsIgnoreCase(brokerMode);
+    }
+
+
+    /**
+     * Records the encoding asked for on CONNECT and redirects packed sessions' topic subscriptions
+     * @param message inbound STOMP message
+     * @param channel client inbound channel
+     * @return message
+     */
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        StompHeaderAccessor accessor = MessageHeaderAccessor.getAccessor(message, StompHeaderAccessor.class);
+        if(accessor == null || accessor.getCommand() == null) {
+            return message;
+        }
+
+        String sessionId = accessor.getSessionId();
+
+        switch(accessor.getCommand()) {
+            case CONNECT:
+                if(PACKED.equalsIgnoreCase(accessor.getFirstNativeHeader(HEADER))) {
+                    packedSessions.add(sessionId);
+                }
+                break;
+            case SUBSCRIBE:
+                String destination = accessor.getDestination();
+                if(packedSessions.contains(sessionId) && destination != null && destination.startsWith(TOPIC_PREFIX)) {
+                    accessor.setDestination(destination + PACKED_SUFFIX);
+                    subscriptions.computeIfAbsent(sessionId, id -> new ConcurrentHashMap<>())
+                            .put(accessor.getSubscriptionId(), destination);
+                    packedSubscribers.computeIfAbsent(destination, d -> new AtomicInteger()).incrementAndGet();
+                }
+                break;
+            case UNSUBSCRIBE:
+                Map<String, String> subscribed = subscriptions.get(sessionId);
+                if(subscribed != null) {
+                    unsubscribed(subscribed.remove(accessor.getSubscriptionId()));
+                }
+                break;
+            case DISCONNECT:
+                disconnected(sessionId);
+                break;
+            default:
+                break;
+        }
+
+        return message;
+    }
+
+
+    /**
+     * Publishes a message to a channel's topic and, if packed clients subscribe, its packed sibling
+     * @param channelId Channel ID
+     * @param message message
+     */
+    void toChannel(String channelId, WSMessage message) {
+        String topic = TOPIC_PREFIX + channelId;
+        this.template.convertAndSend(topic, message);
+
+        AtomicInteger packed = packedSubscribers.get(topic);
+        if(relayed || (packed != null && packed.get() > 0)) {
+            this.template.convertAndSend(topic + PACKED_SUFFIX, pack(message));
+        }
+    }
+
+
+    /**
+     * Sends a message to a single session's user queue; sessions have no principal, so the
+     * session ID doubles as the user name
+     * @param sessionId WebSocket session ID
+     * @param message message
+     */
+    void toSession(String sessionId, WSMessage message) {
+        this.template.convertAndSendToUser(sessionId, USER_QUEUE, forSession(sessionId, message), sessionHeaders(sessionId).getMessageHeaders());
+    }
+
+
+    /**
+     * Sends an already serialized message to a single session's user queue
+     * @param sessionId WebSocket session ID
+     * @param json message as JSON bytes, in the session's encoding
+     */
+    void toSession(String sessionId, byte[] json) {
+        SimpMessageHeaderAccessor headers = sessionHeaders(sessionId);
+        headers.setContentType(MimeTypeUtils.APPLICATION_JSON);
+
+        this.template.send(this.template.getUserDestinationPrefix() + sessionId + USER_QUEUE,
+                MessageBuilder.createMessage(json, headers.getMessageHeaders()));
+    }
+
+
+    /**
+     * Records the encoding of a session connected to another cluster node
+     * @param sessionId WebSocket session ID
+     * @param packed true if the session negotiated the packed encoding
+     */
+    void setPacked(String sessionId, boolean packed) {
+        if(packed) {
+            packedSessions.add(sessionId);
+        }
+        else {
+            packedSessions.remove(sessionId);
+        }
+    }
+
+
+    /**
+     * Checks if a session negotiated the packed encoding
+     * @param sessionId WebSocket session ID
+     * @return boolean
+     */
+    boolean isPacked(String sessionId) {
+        return packedSessions.contains(sessionId);
+    }
+
+
+    /**
+     * Encodes a message for a session
+     * @param sessionId WebSocket session ID
+     * @param message message
+     * @return message in the session's encoding
+     */
+    private WSMessage forSession(String sessionId, WSMessage message) {
+        return isPacked(sessionId) ? pack(message) : message;
+    }
+
+
+    /**
+     * Packs the board a message carries. Whole boards go out as nibbles when small enough,
+     * everything else as a tile list.
+     * @param message message
+     * @return packed message, or the same message if it carries no board
+     */
+    static WSMessage pack(WSMessage message) {
+        if(!(message.getContents() instanceof Board)) {
+            return message;
+        }
+
+        Board board = (Board) message.getContents();
+        boolean whole = "initial".equals(message.getType()) || "loss".equals(message.getType());
+
+        if(whole && (long) board.getWidth() * board.getHeight() <= MAX_PACKED_CELLS) {
+            return new WSMessage(message.getType(), message.getMessage(), PackedBoard.cells(board), message.getEvents());
+        }
+
+        return new WSMessage(message.getType(), message.getMessage(),
+                PackedBoard.tiles(board.getWidth(), board.getHeight(), board.getTiles()), message.getEvents());
+    }
+
+
+    private static SimpMessageHeaderAccessor sessionHeaders(String sessionId) {
+        SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        headers.setSessionId(sessionId);
+        headers.setLeaveMutable(true);
+        return headers;
+    }
+
+
+    private void unsubscribed(String destination) {
+        if(destination != null) {
+            packedSubscribers.computeIfPresent(destination, (d, count) -> count.decrementAndGet() > 0 ? count : null);
+        }
+    }
+
+
+    private void disconnected(String sessionId) {
+        packedSessions.remove(sessionId);
+
+        Map<String, String> subscribed = subscriptions.remove(sessionId);
+        if(subscribed != null) {
+            subscribed.values().forEach(this::unsubscribed);
+        }
+    }
+}
@@ -22,6 +22,10 @@ public class Board {
         tiles.add(new Tile(x, y, state));
     }
 
+    public void addTile(Tile tile) {
+        tiles.add(tile);
+    }
+
     public int getWidth() {
         return width;
     }
@@ -0,0 +1,536 @@
+package josh.slackgames.minesweeper.objects;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Game on a custom, possibly very large board, stored as square chunks allocated on first touch.
+ *
+ * Each chunk gets its share of the mines in proportion to its size and places them with
+ * Floyd sampling from a seed derived from the game seed and chunk index, so a chunk's layout
+ * depends only on the seed, board size and first click, never on exploration order.
+ * Neighbour counts are computed when a cell is revealed, mining the neighbouring chunks as
+ * needed, so memory follows the explored area plus a one-chunk border.
+ */
+public class ChunkedGame extends Game {
+
+    static final int CHUNK_BITS = 5;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    // object and array headers plus fields of one allocated chunk
+    private static final int CHUNK_OVERHEAD_BYTES = 40;
+
+    private final int chunksWide;
+    private final int chunksHigh;
+    private final Chunk[] chunks;
+    private int allocated = 0;
+
+
+    /**
+     * Initializes a new custom game
+     * @param width board width
+     * @param height board height
+     * @param numMines number of mines, less than width * height
+     * @param seed mine placement seed
+     */
+    public ChunkedGame(int width, int height, int numMines, long seed) {
+        super(width, height, numMines, seed);
+
+        this.chunksWide = (width + CHUNK_SIZE - 1) >> CHUNK_BITS;
+        this.chunksHigh = (height + CHUNK_SIZE - 1) >> CHUNK_BITS;
+        this.chunks = new Chunk[chunksWide * chunksHigh];
+    }
+
+
+    @Override
+    public Game renew(long seed) {
+        return new ChunkedGame(width, height, numMines, seed);
+    }
+
+
+    @Override
+    public long estimateBytes() {
+        long refs = (16L + 4L * chunks.length + 7) & ~7L;
+        return GAME_OVERHEAD_BYTES + refs + (long) allocated * (CHUNK_OVERHEAD_BYTES + CHUNK_SIZE * CHUNK_SIZE);
+    }
+
+
+    /**
+     * Chunked games already hold only what has been explored
+     * @return false
+     */
+    @Override
+    public boolean hibernate() {
+        return false;
+    }
+
+
+    @Override
+    public boolean isHibernating() {
+        return false;
+    }
+
+
+    @Override
+    public Board getBoard() {
+        Board board = new Board(width, height);
+
+        for(int k = 0; k < chunks.length; k++) {
+            Chunk chunk = chunks[k];
+            if(chunk == null) {
+                continue;
+            }
+
+            int x0 = (k % chunksWide) << CHUNK_BITS;
+            int y0 = (k / chunksWide) << CHUNK_BITS;
+            int w = chunkWidth(k % chunksWide);
+
+            for(int local = 0; local < chunk.cells.length; local++) {
+                int cell = chunk.cells[local];
+
+                if((cell & REVEALED) != 0) {
+                    board.addTile(x0 + local % w, y0 + local / w, fieldValue(cell));
+                }
+                else if((cell & FLAGGED) != 0) {
+                    board.addTile(x0 + local % w, y0 + local / w, 13);
+                }
+            }
+        }
+
+        return board;
+    }
+
+
+    @Override
+    public Board getBoard(int[] indices) {
+        Board board = new Board(width, height);
+
+        for(int i : indices) {
+            int x = i % width;
+            int y = i / width;
+            int cell = cell(x, y);
+
+            if((cell & REVEALED) != 0) {
+                board.addTile(x, y, fieldValue(cell));
+            }
+            else if((cell & FLAGGED) != 0) {
+                board.addTile(x, y, 13);
+            }
+            else {
+                board.addTile(x, y, null);
+            }
+        }
+
+        return board;
+    }
+
+
+    @Override
+    public Board getBoard(int x, int y, int w, int h) {
+        Board board = new Board(width, height);
+
+        for(int cy = Math.max(y, 0); cy < Math.min(y + h, height); cy++) {
+            for(int cx = Math.max(x, 0); cx < Math.min(x + w, width); cx++) {
+                int cell = cell(cx, cy);
+
+                if((cell & REVEALED) != 0) {
+                    board.addTile(cx, cy, fieldValue(cell));
+                }
+                else if((cell & FLAGGED) != 0) {
+                    board.addTile(cx, cy, 13);
+                }
+            }
+        }
+
+        return board;
+    }
+
+
+    @Override
+    public boolean isFlagged(int x, int y) {
+        return (cell(x, y) & FLAGGED) != 0;
+    }
+
+
+    @Override
+    public Integer flagTile(int clickX, int clickY) {
+        Chunk chunk = chunk(clickX, clickY, true);
+        int local = local(clickX, clickY);
+
+        // do nothing if they click an already revealed tile or game is over
+        if((chunk.cells[local] & REVEALED) != 0 || isFinished()) {
+            return -2;
+        }
+
+        version++;
+        chunk.cells[local] ^= FLAGGED;
+
+        return (chunk.cells[local] & FLAGGED) != 0 ? 13 : null;
+    }
+
+
+    @Override
+    public Integer revealTile(int clickX, int clickY) {
+        int i = index(clickX, clickY);
+        Chunk chunk = chunk(clickX, clickY, true);
+        int local = local(clickX, clickY);
+
+        // do nothing if they click an already revealed tile or game is over
+        if((chunk.cells[local] & REVEALED) != 0 || isFinished()) {
+            return -2;
+        }
+
+        version++;
+
+        // remove flag
+        chunk.cells[local] &= ~FLAGGED;
+
+        // the first click fixes where every chunk's mines go
+        if(firstClick < 0) {
+            firstClick = i;
+        }
+
+        // check for losing condition
+        if(isMine(clickX, clickY)) {
+            gameOver = true;
+            exploded = i;
+            chunk.cells[local] |= EXPLODED;
+            lastRevealed = revealMines();
+            numRevealed += lastRevealed.length;
+
+            return -4;
+        }
+
+        int count = neighbourMines(clickX, clickY);
+
+        if(count == 0) {
+            lastRevealed = floodReveal(clickX, clickY);
+        }
+        else {
+            reveal(chunk, local, count);
+            numRevealed++;
+            safeRemaining--;
+            lastRevealed = new int[] { i };
+        }
+
+        // check for winning condition
+        if(safeRemaining == 0) {
+            won = true;
+            return -1;
+        }
+
+        return count == 0 ? -3 : count;
+    }
+
+
+    /**
+     * Does flood reveal from a blank cell, computing counts as cells are revealed
+     * @param x x point
+     * @param y y point
+     * @return row-major indices of the newly revealed cells
+     */
+    @Override
+    int[] floodReveal(int x, int y) {
+        if(!validPoint(x, y) || (cell(x, y) & REVEALED) != 0 || isMine(x, y)) {
+            return new int[0];
+        }
+
+        // a flood can never reveal more than the remaining safe cells
+        int limit = safeRemaining;
+        int[] queue = new int[Math.min(limit, MIN_FLOOD_QUEUE)];
+        int head = 0;
+        int tail = 0;
+
+        reveal(chunk(x, y, true), local(x, y), neighbourMines(x, y));
+        queue[tail++] = index(x, y);
+
+        while(head < tail) {
+            int c = queue[head++];
+            int cx = c % width;
+            int cy = c / width;
+
+            if((cell(cx, cy) & COUNT_MASK) != 0) {
+                continue;
+            }
+
+            for(int ny = Math.max(cy - 1, 0); ny <= Math.min(cy + 1, height - 1); ny++) {
+                for(int nx = Math.max(cx - 1, 0); nx <= Math.min(cx + 1, width - 1); nx++) {
+                    Chunk chunk = chunk(nx, ny, true);
+                    int local = local(nx, ny);
+
+                    // neighbours of a blank cell are never mines
+                    if((chunk.cells[local] & REVEALED) != 0) {
+                        continue;
+                    }
+
+                    if(tail == queue.length) {
+                        queue = Arrays.copyOf(queue, Math.min(queue.length * 2, limit));
+                    }
+
+                    reveal(chunk, local, neighbourMines(nx, ny));
+                    queue[tail++] = index(nx, ny);
+                }
+            }
+        }
+
+        numRevealed += tail;
+        safeRemaining -= tail;
+
+        return tail == queue.length ? queue : Arrays.copyOf(queue, tail);
+    }
+
+
+    @Override
+    public int snapshotSize() {
+        int size = SNAPSHOT_BITMAPS_OFFSET + 12;
+
+        for(Chunk chunk : chunks) {
+            if(chunk != null) {
+                size += 5 + chunk.cells.length;
+            }
+        }
+
+        return size;
+    }
+
+
+    @Override
+    byte snapshotVersion() {
+        return CHUNKED_SNAPSHOT_VERSION;
+    }
+
+
+    /**
+     * Encodes the counters, then each allocated chunk as its index, mined flag and raw cells
+     * @param out destination
+     */
+    @Override
+    void writeCells(ByteBuffer out) {
+        out.putInt(numRevealed);
+        out.putInt(safeRemaining);
+        out.putInt(allocated);
+
+        for(int k = 0; k < chunks.length; k++) {
+            if(chunks[k] != null) {
+                out.putInt(k);
+                out.put((byte) (chunks[k].mined ? 1 : 0));
+                out.put(chunks[k].cells);
+            }
+        }
+    }
+
+
+    @Override
+    void readCells(ByteBuffer in) {
+        numRevealed = in.getInt();
+        safeRemaining = in.getInt();
+
+        int count = in.getInt();
+        if(count < 0 || count > chunks.length) {
+            throw new IllegalArgumentException("Invalid chunk count in game snapshot");
+        }
+
+        for(int n = 0; n < count; n++) {
+            int k = in.getInt();
+            if(k < 0 || k >= chunks.length || chunks[k] != null) {
+                throw new IllegalArgumentException("Invalid chunk in game snapshot");
+            }
+
+            Chunk chunk = new Chunk(chunkWidth(k % chunksWide) * chunkHeight(k / chunksWide));
+            chunk.mined = in.get() != 0;
+            in.get(chunk.cells);
+
+            chunks[k] = chunk;
+            allocated++;
+        }
+    }
+
+
+    /**
+     * Checks if a cell holds a mine, generating its chunk's mines first if needed.
+     * Only valid once the first click is known.
+     * @param x x point
+     * @param y y point
+     * @return boolean
+     */
+    boolean isMine(int x, int y) {
+        int k = chunkIndex(x, y);
+        Chunk chunk = chunk(x, y, true);
+
+        if(!chunk.mined) {
+            mine(k, chunk);
+        }
+
+        return (chunk.cells[local(x, y)] & MINE) != 0;
+    }
+
+
+    /**
+     * Counts the mines around a cell
+     * @param x x point
+     * @param y y point
+     * @return 0-8
+     */
+    private int neighbourMines(int x, int y) {
+        int count = 0;
+
+        for(int ny = Math.max(y - 1, 0); ny <= Math.min(y + 1, height - 1); ny++) {
+            for(int nx = Math.max(x - 1, 0); nx <= Math.min(x + 1, width - 1); nx++) {
+                if((nx != x || ny != y) && isMine(nx, ny)) {
+                    count++;
+                }
+            }
+        }
+
+        return count;
+    }
+
+
+    /**
+     * Places a chunk's share of the mines with Floyd's sampling, skipping the first click
+     * @param k chunk index
+     * @param chunk chunk
+     */
+    private void mine(int k, Chunk chunk) {
+        int w = chunkWidth(k % chunksWide);
+        int x0 = (k % chunksWide) << CHUNK_BITS;
+        int y0 = (k / chunksWide) << CHUNK_BITS;
+        int fx = firstClick % width;
+        int fy = firstClick / width;
+        int start = chunkIndex(fx, fy) == k ? (fy - y0) * w + (fx - x0) : -1;
+
+        int candidates = start < 0 ? chunk.cells.length : chunk.cells.length - 1;
+        long mines = minesBefore(k + 1) - minesBefore(k);
+        Random rand = new Random(seed + k * 0x9E3779B97F4A7C15L);
+
+        for(int j = candidates - (int) mines; j < candidates; j++) {
+            int t = rand.nextInt(j + 1);
+
+            // skip over the starting cell when mapping a sample to a cell
+            int cell = start < 0 || t < start ? t : t + 1;
+            if((chunk.cells[cell] & MINE) != 0) {
+                cell = start < 0 || j < start ? j : j + 1;
+            }
+
+            chunk.cells[cell] |= MINE;
+        }
+
+        chunk.mined = true;
+    }
+
+
+    /**
+     * Number of mines in the chunks before k. Mines are spread over every cell but the first
+     * click in proportion to position, so each chunk's share is exact and the total is numMines.
+     * @param k chunk index, up to chunks.length
+     * @return mines
+     */
+    private long minesBefore(int k) {
+        long eligible = (long) width * height - 1;
+
+        if(k < chunks.length) {
+            int cy = k / chunksWide;
+            long cells = (long) cy * CHUNK_SIZE * width + (long) (k % chunksWide) * CHUNK_SIZE * chunkHeight(cy);
+            boolean pastFirst = chunkIndex(firstClick % width, firstClick / width) < k;
+            eligible = cells - (pastFirst ? 1 : 0);
+        }
+
+        return numMines * eligible / ((long) width * height - 1);
+    }
+
+
+    /**
+     * Reveals every mine in the chunks mined so far; the rest of the board was never explored
+     * @return row-major indices of the newly revealed mines
+     */
+    private int[] revealMines() {
+        int[] mines = new int[16];
+        int n = 0;
+
+        for(int k = 0; k < chunks.length; k++) {
+            Chunk chunk = chunks[k];
+            if(chunk == null || !chunk.mined) {
+                continue;
+            }
+
+            int x0 = (k % chunksWide) << CHUNK_BITS;
+            int y0 = (k / chunksWide) << CHUNK_BITS;
+            int w = chunkWidth(k % chunksWide);
+
+            for(int local = 0; local < chunk.cells.length; local++) {
+                if((chunk.cells[local] & (MINE | REVEALED)) == MINE) {
+                    chunk.cells[local] |= REVEALED;
+
+                    if(n == mines.length) {
+                        mines = Arrays.copyOf(mines, n * 2);
+                    }
+                    mines[n++] = index(x0 + local % w, y0 + local / w);
+                }
+            }
+        }
+
+        return Arrays.copyOf(mines, n);
+    }
+
+
+    private static void reveal(Chunk chunk, int local, int count) {
+        chunk.cells[local] = (byte) ((chunk.cells[local] & ~(FLAGGED | COUNT_MASK)) | REVEALED | count);
+    }
+
+
+    /**
+     * Reads a cell without allocating its chunk
+     * @param x x point
+     * @param y y point
+     * @return packed cell, 0 if the chunk was never touched
+     */
+    private int cell(int x, int y) {
+        Chunk chunk = chunks[chunkIndex(x, y)];
+        return chunk == null ? 0 : chunk.cells[local(x, y)];
+    }
+
+
+    private Chunk chunk(int x, int y, boolean create) {
+        int k = chunkIndex(x, y);
+        Chunk chunk = chunks[k];
+
+        if(chunk == null && create) {
+            chunk = new Chunk(chunkWidth(k % chunksWide) * chunkHeight(k / chunksWide));
+            chunks[k] = chunk;
+            allocated++;
+        }
+
+        return chunk;
+    }
+
+
+    private int chunkIndex(int x, int y) {
+        return (y >> CHUNK_BITS) * chunksWide + (x >> CHUNK_BITS);
+    }
+
+
+    private int local(int x, int y) {
+        return (y & (CHUNK_SIZE - 1)) * chunkWidth(x >> CHUNK_BITS) + (x & (CHUNK_SIZE - 1));
+    }
+
+
+    private int chunkWidth(int cx) {
+        return Math.min(CHUNK_SIZE, width - (cx << CHUNK_BITS));
+    }
+
+
+    private int chunkHeight(int cy) {
+        return Math.min(CHUNK_SIZE, height - (cy << CHUNK_BITS));
+    }
+
+
+    private static final class Chunk {
+        private final byte[] cells;
+        private boolean mined = false;
+
+        private Chunk(int size) {
+            this.cells = new byte[size];
+        }
+    }
+}
@@ -2,21 +2,52 @@ package josh.slackgames.minesweeper.objects;
 
 import josh.slackgames.minesweeper.MinesweeperService;
 
-import java.awt.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class Game {
 
-    private List<Point> mines = new ArrayList<>();
-    private int width, height, numMines;
-    private int[][] field;
-    private boolean[][] revealed;
-    private boolean[][] flagged;
-    private boolean generated = false;
+    /*
+     * Each cell is packed into a single byte:
+     * bits 0-3 neighbour count, bit 4 mine, bit 5 revealed, bit 6 flagged, bit 7 exploded
+     */
+    static final int COUNT_MASK = 0x0F;
+    static final int MINE = 0x10;
+    static final int REVEALED = 0x20;
+    static final int FLAGGED = 0x40;
+    static final int EXPLODED = 0x80;
+
+    // shallow size of a Game instance plus the cells array header, rounded up
+    static final int GAME_OVERHEAD_BYTES = 104;
+
+    static final int MIN_FLOOD_QUEUE = 64;
+
+    private static final byte SNAPSHOT_VERSION = 2;
+    static final byte CHUNKED_SNAPSHOT_VERSION = 3;
+    private static final int SNAPSHOT_LAST_ACCESSED_OFFSET = 22;
+    private static final int SNAPSHOT_STATE_OFFSET = 34;
+    static final int SNAPSHOT_BITMAPS_OFFSET = 39;
+
+    final int width, height, numMines;
+    private byte[] cells;
+    // revealed then flagged bitmaps while hibernating, otherwise null
+    private byte[] dormant;
+    int exploded = -1;
+    int numRevealed = 0;
+    int safeRemaining;
+    int[] lastRevealed;
+    final long seed;
+    int firstClick = -1;
+    // time the first click spent laying mines, for metrics
+    private long fieldNanos;
     private MinesweeperService.Level level;
-    private boolean gameOver = false;
+    boolean gameOver = false;
+    boolean won = false;
+    // bumped by every click that gets past the finished/revealed check
+    int version = 0;
+    private volatile long lastAccessed = System.currentTimeMillis();
 
 
     /**
@@ -24,32 +55,157 @@ public class Game {
      * @param level Difficulty level
      */
     public Game(MinesweeperService.Level level) {
-        int width = 8;
-        int height = 8;
-        int numMines = 10;
+        this(level, ThreadLocalRandom.current().nextLong());
+    }
+
+
+    /**
+     * Initializes a new game state whose mine layout is fixed by a seed and the first click
+     * @param level Difficulty level
+     * @param seed mine placement seed
+     */
+    public Game(MinesweeperService.Level level, long seed) {
+        this(level, level.getWidth(), level.getHeight(), level.getNumMines(), seed);
+    }
 
-        if(level == MinesweeperService.Level.INTERMEDIATE) {
-            width = 16;
-            height = 16;
-            numMines = 40;
-        }
-        else if(level == MinesweeperService.Level.EXPERT) {
-            width = 30;
-            height = 16;
-            numMines = 99;
-        }
 
-        this.field = new int[width][height];
+    /**
+     * Initializes a game with explicit dimensions
+     * @param level Difficulty level, may be null for boards outside the fixed levels
+     * @param width board width
+     * @param height board height
+     * @param numMines number of mines
+     * @param seed mine placement seed
+     */
+    Game(MinesweeperService.Level level, int width, int height, int numMines, long seed) {
         this.width = width;
         this.height = height;
         this.numMines = numMines;
         this.level = level;
+        this.seed = seed;
 
-        // set all tiles to not-revealed
-        this.revealed = new boolean[width][height];
+        // all tiles start hidden, unflagged and without mines
+        this.cells = new byte[width * height];
+        this.safeRemaining = width * height - numMines;
+    }
 
-        // set all tiles to not-flagged
-        this.flagged = new boolean[width][height];
+
+    /**
+     * Initializes a game whose cells are stored by a subclass
+     * @param width board width
+     * @param height board height
+     * @param numMines number of mines
+     * @param seed mine placement seed
+     */
+    Game(int width, int height, int numMines, long seed) {
+        this.width = width;
+        this.height = height;
+        this.numMines = numMines;
+        this.seed = seed;
+        this.safeRemaining = width * height - numMines;
+    }
+
+
+    /**
+     * Creates a fresh game on the same board as this one
+     * @param seed mine placement seed
+     * @return Game
+     */
+    public Game renew(long seed) {
+        return new Game(level, width, height, numMines, seed);
+    }
+
+
+    /**
+     * Estimates the heap retained by a game of the given size
+     * @param width board width
+     * @param height board height
+     * @return bytes
+     */
+    public static long estimateBytes(int width, int height) {
+        long cellBytes = ((long) width * height + 7) & ~7L;
+        return GAME_OVERHEAD_BYTES + cellBytes;
+    }
+
+
+    /**
+     * Estimates the heap retained by this game
+     * @return bytes
+     */
+    public long estimateBytes() {
+        // may be called without the monitor, e.g. by the eviction sweep
+        byte[] bitmaps = dormant;
+        if(cells == null && bitmaps != null) {
+            return GAME_OVERHEAD_BYTES + ((bitmaps.length + 7) & ~7L);
+        }
+
+        return estimateBytes(width, height);
+    }
+
+
+    /**
+     * Records that the game was just used
+     */
+    public void touch() {
+        lastAccessed = System.currentTimeMillis();
+    }
+
+
+    public long getLastAccessed() {
+        return lastAccessed;
+    }
+
+
+    /**
+     * Drops the cell array, keeping only revealed and flagged bitmaps. Mines and neighbour
+     * counts are regenerated from the seed and first click when the game is next used.
+     * @return true if the game was awake
+     */
+    public boolean hibernate() {
+        if(cells == null) {
+            return false;
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(2 * bitmapBytes());
+        writeBitmap(out, REVEALED);
+        writeBitmap(out, FLAGGED);
+
+        dormant = out.array();
+        cells = null;
+        lastRevealed = null;
+
+        return true;
+    }
+
+
+    public boolean isHibernating() {
+        return cells == null;
+    }
+
+
+    /**
+     * Rebuilds the cell array of a hibernating game
+     */
+    private void wake() {
+        if(cells != null) {
+            return;
+        }
+
+        cells = new byte[width * height];
+
+        if(firstClick >= 0) {
+            generateField(firstClick % width, firstClick / width);
+        }
+
+        ByteBuffer in = ByteBuffer.wrap(dormant);
+        readBitmap(in, REVEALED);
+        readBitmap(in, FLAGGED);
+
+        if(exploded >= 0) {
+            cells[exploded] |= EXPLODED;
+        }
+
+        dormant = null;
     }
 
 
@@ -58,15 +214,18 @@ public class Game {
      * @return Board
      */
     public Board getBoard() {
+        wake();
         Board board = new Board(width, height);
 
         // add tiles to response object
         for(int y = 0; y < height; y++) {
             for(int x = 0; x < width; x++) {
-                if(revealed[x][y]) {
-                    board.addTile(x, y, field[x][y]);
+                int cell = cells[index(x, y)];
+
+                if((cell & REVEALED) != 0) {
+                    board.addTile(x, y, fieldValue(cell));
                 }
-                else if(flagged[x][y]) {
+                else if((cell & FLAGGED) != 0) {
                     board.addTile(x, y, 13);
                 }
             }
@@ -76,6 +235,63 @@ public class Game {
     }
 
 
+    /**
+     * Builds a partial board holding only the given cells, e.g. a click delta.
+     * Hidden, unflagged cells are included with a null state so clients can clear them.
+     * @param indices row-major cell indices
+     * @return Board
+     */
+    public Board getBoard(int[] indices) {
+        wake();
+        Board board = new Board(width, height);
+
+        for(int i : indices) {
+            int cell = cells[i];
+
+            if((cell & REVEALED) != 0) {
+                board.addTile(i % width, i / width, fieldValue(cell));
+            }
+            else if((cell & FLAGGED) != 0) {
+                board.addTile(i % width, i / width, 13);
+            }
+            else {
+                board.addTile(i % width, i / width, null);
+            }
+        }
+
+        return board;
+    }
+
+
+    /**
+     * Builds a partial board holding the revealed and flagged cells inside a rectangle
+     * @param x left edge
+     * @param y top edge
+     * @param w rectangle width
+     * @param h rectangle height
+     * @return Board
+     */
+    public Board getBoard(int x, int y, int w, int h) {
+        wake();
+        Board board = new Board(width, height);
+
+        for(int cy = Math.max(y, 0); cy < Math.min(y + h, height); cy++) {
+            for(int cx = Math.max(x, 0); cx < Math.min(x + w, width); cx++) {
+                int cell = cells[index(cx, cy)];
+
+                if((cell & REVEALED) != 0) {
+                    board.addTile(cx, cy, fieldValue(cell));
+                }
+                else if((cell & FLAGGED) != 0) {
+                    board.addTile(cx, cy, 13);
+                }
+            }
+        }
+
+        return board;
+    }
+
+
     public int getWidth() {
         return width;
     }
@@ -92,45 +308,339 @@ public class Game {
         return gameOver;
     }
 
+    public boolean isWon() {
+        return won;
+    }
+
+    /**
+     * Checks if the game has been won or lost
+     * @return boolean
+     */
+    public boolean isFinished() {
+        return gameOver || won;
+    }
+
+    public int getNumRevealed() {
+        return numRevealed;
+    }
+
+    public int getSafeRemaining() {
+        return safeRemaining;
+    }
+
+    /**
+     * Cells newly revealed by the most recent call to revealTile
+     * @return row-major cell indices (y * width + x), or null if nothing was revealed yet
+     */
+    public int[] getLastRevealed() {
+        return lastRevealed;
+    }
+
+    /**
+     * Checks if the mines have been laid, which happens on the first reveal
+     * @return boolean
+     */
+    public boolean hasField() {
+        return firstClick >= 0;
+    }
+
+    /**
+     * Time the first reveal spent laying mines
+     * @return nanoseconds, or 0 if the mines were laid elsewhere or not yet
+     */
+    public long getFieldNanos() {
+        return fieldNanos;
+    }
+
     public MinesweeperService.Level getLevel() {
         return level;
     }
 
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Counts the clicks applied to this game; anything built from the board can be reused while it stays the same
+     * @return version
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    public boolean isFlagged(int x, int y) {
+        wake();
+        return (cells[index(x, y)] & FLAGGED) != 0;
+    }
+
+
+    /**
+     * Bytes needed by {@link #writeSnapshot(ByteBuffer)}
+     * @return bytes
+     */
+    public int snapshotSize() {
+        return SNAPSHOT_BITMAPS_OFFSET + 2 * bitmapBytes();
+    }
+
+
+    /**
+     * Encodes the game: dimensions, level, seed, last access, first click, game-over state,
+     * exploded cell, then revealed and flagged bitmaps. Mines are regenerated from the seed
+     * and first click, so neither they nor the neighbour counts are stored.
+     * @param out destination with at least snapshotSize() bytes remaining
+     */
+    public void writeSnapshot(ByteBuffer out) {
+        out.put(snapshotVersion());
+        out.put((byte) (level == null ? -1 : level.ordinal()));
+        out.putInt(width);
+        out.putInt(height);
+        out.putInt(numMines);
+        out.putLong(seed);
+        out.putLong(lastAccessed);
+        out.putInt(firstClick);
+        out.put((byte) ((gameOver ? 1 : 0) | (won ? 2 : 0)));
+        out.putInt(exploded);
+
+        writeCells(out);
+    }
+
+
+    byte snapshotVersion() {
+        return SNAPSHOT_VERSION;
+    }
+
+
+    /**
+     * Encodes the cell state that follows the snapshot header
+     * @param out destination
+     */
+    void writeCells(ByteBuffer out) {
+        if(cells == null) {
+            out.put(dormant);
+        }
+        else {
+            writeBitmap(out, REVEALED);
+            writeBitmap(out, FLAGGED);
+        }
+    }
+
+
+    /**
+     * Decodes a game written by {@link #writeSnapshot(ByteBuffer)}. Fixed-level games come
+     * back hibernating, so their cells are only rebuilt once used.
+     * @param in source positioned at the start of the snapshot
+     * @return Game
+     */
+    public static Game readSnapshot(ByteBuffer in) {
+        int version = in.get();
+        if(version != SNAPSHOT_VERSION && version != CHUNKED_SNAPSHOT_VERSION) {
+            throw new IllegalArgumentException("Unsupported game snapshot version");
+        }
+
+        int levelOrdinal = in.get();
+        MinesweeperService.Level level = levelOrdinal < 0 ? null : MinesweeperService.Level.values()[levelOrdinal];
+        int width = in.getInt();
+        int height = in.getInt();
+        int numMines = in.getInt();
+
+        long seed = in.getLong();
+        Game game = version == CHUNKED_SNAPSHOT_VERSION
+                ? new ChunkedGame(width, height, numMines, seed)
+                : new Game(level, width, height, numMines, seed);
+        game.lastAccessed = in.getLong();
+        game.firstClick = in.getInt();
+
+        int state = in.get();
+        game.gameOver = (state & 1) != 0;
+        game.won = (state & 2) != 0;
+        game.exploded = in.getInt();
+        game.readCells(in);
+
+        return game;
+    }
+
+
+    /**
+     * Checks a snapshot from outside this node before it is decoded: a known version and level,
+     * dimensions and mine count a board could have, and for dense games the exact length.
+     * Chunked games check their chunks while decoding.
+     * @param encoded snapshot bytes
+     * @param maxCells largest board allowed
+     * @throws IllegalArgumentException if the snapshot can't be a game
+     */
+    public static void checkSnapshot(byte[] encoded, long maxCells) {
+        if(encoded.length < SNAPSHOT_BITMAPS_OFFSET) {
+            throw new IllegalArgumentException("Game snapshot is truncated");
+        }
+
+        ByteBuffer in = ByteBuffer.wrap(encoded);
+        int version = in.get();
+        int levelOrdinal = in.get();
+        int width = in.getInt();
+        int height = in.getInt();
+        int numMines = in.getInt();
+        long cells = (long) width * height;
+
+        if(version != SNAPSHOT_VERSION && version != CHUNKED_SNAPSHOT_VERSION) {
+            throw new IllegalArgumentException("Unsupported game snapshot version");
+        }
+
+        if(levelOrdinal >= MinesweeperService.Level.values().length || levelOrdinal < -1) {
+            throw new IllegalArgumentException("Invalid game snapshot level");
+        }
+
+        if(levelOrdinal >= 0) {
+            MinesweeperService.Level level = MinesweeperService.Level.values()[levelOrdinal];
+            if(width != level.getWidth() || height != level.getHeight() || numMines != level.getNumMines()) {
+                throw new IllegalArgumentException("Game snapshot doesn't match its level");
+            }
+        }
+
+        if(width < 1 || height < 1 || cells > maxCells || numMines < 1 || numMines >= cells) {
+            throw new IllegalArgumentException("Invalid game snapshot dimensions");
+        }
+
+        int firstClick = in.getInt(SNAPSHOT_STATE_OFFSET - 4);
+        int exploded = in.getInt(SNAPSHOT_STATE_OFFSET + 1);
+        if(firstClick < -1 || firstClick >= cells || exploded < -1 || exploded >= cells) {
+            throw new IllegalArgumentException("Invalid game snapshot cells");
+        }
+
+        if(version != CHUNKED_SNAPSHOT_VERSION) {
+            long bitmapBytes = (cells + 7) / 8;
+            if(encoded.length != SNAPSHOT_BITMAPS_OFFSET + 2 * bitmapBytes) {
+                throw new IllegalArgumentException("Game snapshot has the wrong length");
+            }
+        }
+    }
+
+
+    /**
+     * Decodes the cell state that follows the snapshot header. Dense games come back hibernating.
+     * @param in source positioned after the header
+     */
+    void readCells(ByteBuffer in) {
+        int bitmapBytes = bitmapBytes();
+
+        dormant = new byte[2 * bitmapBytes];
+        in.get(dormant);
+        cells = null;
+
+        for(int b = 0; b < bitmapBytes; b++) {
+            numRevealed += Integer.bitCount(dormant[b] & 0xFF);
+        }
+
+        // a lost game has every mine revealed
+        safeRemaining -= numRevealed - (gameOver ? numMines : 0);
+    }
+
+
+    /**
+     * Reads the last access time from an encoded game without decoding it
+     * @param in buffer holding the snapshot
+     * @param offset offset of the snapshot in the buffer
+     * @return epoch millis
+     */
+    public static long peekLastAccessed(ByteBuffer in, int offset) {
+        return in.getLong(offset + SNAPSHOT_LAST_ACCESSED_OFFSET);
+    }
+
+
+    /**
+     * Reads the won/lost state from an encoded game without decoding it
+     * @param in buffer holding the snapshot
+     * @param offset offset of the snapshot in the buffer
+     * @return boolean
+     */
+    public static boolean peekFinished(ByteBuffer in, int offset) {
+        return in.get(offset + SNAPSHOT_STATE_OFFSET) != 0;
+    }
+
+
+    private int bitmapBytes() {
+        return (width * height + 7) / 8;
+    }
+
+
+    private void writeBitmap(ByteBuffer out, int bit) {
+        for(int c = 0; c < cells.length; c += 8) {
+            int b = 0;
+
+            for(int k = 0; k < 8 && c + k < cells.length; k++) {
+                if((cells[c + k] & bit) != 0) {
+                    b |= 1 << k;
+                }
+            }
+
+            out.put((byte) b);
+        }
+    }
+
+
+    private void readBitmap(ByteBuffer in, int bit) {
+        for(int c = 0; c < cells.length; c += 8) {
+            int b = in.get();
+
+            for(int k = 0; k < 8 && c + k < cells.length; k++) {
+                if((b & (1 << k)) != 0) {
+                    cells[c + k] |= bit;
+                }
+            }
+        }
+    }
+
+
     /**
      * Generates a new game field
      * @param clickX x-coordinate user starts with
      * @param clickY y-coordinate user starts with
      */
     public void generateField(int clickX, int clickY) {
-        // place mines randomly in field
-        for(int i = 0; i < numMines ; i++) {
-            Random rand = new Random();
-            int x = rand.nextInt(width);
-            int y = rand.nextInt(height);
-
-            // retry if this spot already has a mine or if it's the starting spot
-            if(field[x][y] != 0 || (x == clickX && y == clickY)) {
-                i--;
-                continue;
+        generateField(clickX, clickY, new Random(seed));
+    }
+
+
+    /**
+     * Generates a new game field.
+     * Mines are drawn with Floyd's sampling over every cell except the starting one, using the
+     * mine bits themselves as the chosen set, so there are no retries and no extra allocation.
+     * Neighbour counts are incremented around each mine as it is placed.
+     * @param clickX x-coordinate user starts with
+     * @param clickY y-coordinate user starts with
+     * @param rand random source
+     */
+    void generateField(int clickX, int clickY, Random rand) {
+        int start = index(clickX, clickY);
+        int candidates = cells.length - 1;
+
+        for(int j = candidates - numMines; j < candidates; j++) {
+            int t = rand.nextInt(j + 1);
+
+            // skip over the starting cell when mapping a sample to a cell
+            int cell = t < start ? t : t + 1;
+            if((cells[cell] & MINE) != 0) {
+                cell = j < start ? j : j + 1;
             }
 
-            field[x][y] = 10;
-            mines.add(new Point(x, y));
+            placeMine(cell);
         }
+    }
 
-        // generate integer distances to surrounding mines
-        for(int y = 0; y < height; y++) {
-            for(int x = 0; x < width; x++) {
-                if(field[x][y] == 10) {
-                    continue;
-                }
 
-                for(Point p: mines) {
-                    double distance = Math.hypot(x-p.x, y-p.y);
+    /**
+     * Marks a cell as a mine and increments the counts of its neighbours
+     * @param cell row-major cell index
+     */
+    private void placeMine(int cell) {
+        int x = cell % width;
+        int y = cell / width;
+
+        cells[cell] |= MINE;
 
-                    if(distance < 2) {
-                        field[x][y]++;
-                    }
+        for(int ny = Math.max(y - 1, 0); ny <= Math.min(y + 1, height - 1); ny++) {
+            for(int nx = Math.max(x - 1, 0); nx <= Math.min(x + 1, width - 1); nx++) {
+                if(nx != x || ny != y) {
+                    cells[index(nx, ny)]++;
                 }
             }
         }
@@ -144,14 +654,18 @@ public class Game {
      * @return Integer
      */
     public Integer flagTile(int clickX, int clickY) {
+        wake();
+        int i = index(clickX, clickY);
+
         // do nothing if they click an already revealed tile or game is over
-        if(revealed[clickX][clickY] || isGameOver()) {
+        if((cells[i] & REVEALED) != 0 || isFinished()) {
             return -2;
         }
 
-        flagged[clickX][clickY] = !flagged[clickX][clickY];
+        version++;
+        cells[i] ^= FLAGGED;
 
-        return flagged[clickX][clickY] ? 13 : null;
+        return (cells[i] & FLAGGED) != 0 ? 13 : null;
     }
 
 
@@ -163,86 +677,130 @@ public class Game {
      * @return Integer
      */
     public Integer revealTile(int clickX, int clickY) {
+        wake();
+        int i = index(clickX, clickY);
+
         // do nothing if they click an already revealed tile or game is over
-        if(revealed[clickX][clickY] || isGameOver()) {
+        if((cells[i] & REVEALED) != 0 || isFinished()) {
             return -2;
         }
 
+        version++;
+
         // remove flag
-        flagged[clickX][clickY] = false;
+        cells[i] &= ~FLAGGED;
 
         // generate board if first click
-        if(!generated) {
+        if(firstClick < 0) {
+            long started = System.nanoTime();
             generateField(clickX, clickY);
-            generated = true;
+            fieldNanos = System.nanoTime() - started;
+            firstClick = i;
         }
 
-        // reveal tile
-        revealed[clickX][clickY] = true;
-
-        // check for winning condition
-        if(field[clickX][clickY] != 10) {
-            int numRevealed = 0;
-            int totalTiles = width * height;
-            for (int y = 0; y < height; y++) {
-                for (int x = 0; x < width; x++) {
-                    if (revealed[x][y]) {
-                        numRevealed++;
-                    }
+        // check for losing condition
+        if((cells[i] & MINE) != 0) {
+            gameOver = true;
+            exploded = i;
+            cells[i] |= EXPLODED;
+
+            int[] mines = new int[numMines];
+            int n = 0;
+            for(int c = 0; c < cells.length; c++) {
+                if((cells[c] & (MINE | REVEALED)) == MINE) {
+                    cells[c] |= REVEALED;
+                    mines[n++] = c;
                 }
             }
 
-            if(totalTiles - numRevealed == numMines) {
-                // winner winner chicken dinner!
-                return -1;
-            }
+            numRevealed += n;
+            lastRevealed = n == mines.length ? mines : Arrays.copyOf(mines, n);
+
+            return -4;
         }
 
         // flood reveal
-        if(field[clickX][clickY] == 0) {
-            revealed[clickX][clickY] = false;
-            floodReveal(clickX, clickY);
-            return -3;
+        if(cells[i] == 0) {
+            lastRevealed = floodReveal(clickX, clickY);
+        }
+        else {
+            cells[i] |= REVEALED;
+            numRevealed++;
+            safeRemaining--;
+            lastRevealed = new int[] { i };
         }
 
-        // check for losing condition
-        if(field[clickX][clickY] == 10) {
-            gameOver = true;
-            field[clickX][clickY] = 11;
-
-            mines.forEach( point -> revealed[point.x][point.y] = true);
+        // check for winning condition
+        if(safeRemaining == 0) {
+            // winner winner chicken dinner!
+            won = true;
+            return -1;
+        }
 
-            return -4;
+        if((cells[i] & COUNT_MASK) == 0) {
+            return -3;
         }
 
-        return field[clickX][clickY];
+        return cells[i] & COUNT_MASK;
     }
 
 
     /**
-     * Does flood reveal from blank space
+     * Does flood reveal from blank space.
+     * Breadth-first over a single index queue, which doubles as the list of revealed cells.
      * @param x x point
      * @param y y point
+     * @return row-major indices of the newly revealed cells
      */
-    void floodReveal(int x, int y) {
-        if(!validPoint(x, y) || revealed[x][y]) {
-            return;
+    int[] floodReveal(int x, int y) {
+        int start = index(x, y);
+
+        if(!validPoint(x, y) || (cells[start] & (REVEALED | MINE)) != 0) {
+            return new int[0];
         }
 
-        revealed[x][y] = true;
+        // a flood can never reveal more than the remaining safe cells
+        int limit = safeRemaining;
+        int[] queue = new int[Math.min(limit, MIN_FLOOD_QUEUE)];
+        int head = 0;
+        int tail = 0;
 
-        if(field[x][y] != 0) {
-            return;
+        cells[start] = (byte) ((cells[start] & ~FLAGGED) | REVEALED);
+        queue[tail++] = start;
+
+        while(head < tail) {
+            int c = queue[head++];
+
+            if((cells[c] & COUNT_MASK) != 0) {
+                continue;
+            }
+
+            int cx = c % width;
+            int cy = c / width;
+
+            for(int ny = Math.max(cy - 1, 0); ny <= Math.min(cy + 1, height - 1); ny++) {
+                for(int nx = Math.max(cx - 1, 0); nx <= Math.min(cx + 1, width - 1); nx++) {
+                    int n = index(nx, ny);
+
+                    // neighbours of a blank cell are never mines
+                    if((cells[n] & REVEALED) != 0) {
+                        continue;
+                    }
+
+                    if(tail == queue.length) {
+                        queue = Arrays.copyOf(queue, Math.min(queue.length * 2, limit));
+                    }
+
+                    cells[n] = (byte) ((cells[n] & ~FLAGGED) | REVEALED);
+                    queue[tail++] = n;
+                }
+            }
         }
 
-        floodReveal(x - 1, y - 1);
-        floodReveal(x, y - 1);
-        floodReveal(x + 1, y - 1);
-        floodReveal(x + 1, y);
-        floodReveal(x + 1, y + 1);
-        floodReveal(x, y + 1);
-        floodReveal(x - 1, y + 1);
-        floodReveal(x - 1, y);
+        numRevealed += tail;
+        safeRemaining -= tail;
+
+        return tail == queue.length ? queue : Arrays.copyOf(queue, tail);
     }
 
 
@@ -252,7 +810,32 @@ public class Game {
      * @param y y point
      * @return boolean
      */
-    boolean validPoint(int x, int y) {
+    public boolean validPoint(int x, int y) {
         return !(x < 0 || x >= width || y < 0 || y >= height);
     }
-}
\ No newline at end of file
+
+
+    /**
+     * Row-major index of a cell
+     * @param x x point
+     * @param y y point
+     * @return index into cells
+     */
+    int index(int x, int y) {
+        return y * width + x;
+    }
+
+
+    /**
+     * Translates a packed cell into the field value sent to clients
+     * @param cell packed cell
+     * @return 0-8 for counts, 10 for a mine, 11 for the exploded mine
+     */
+    static int fieldValue(int cell) {
+        if((cell & EXPLODED) != 0) {
+            return 11;
+        }
+
+        return (cell & MINE) != 0 ? 10 : cell & COUNT_MASK;
+    }
+}
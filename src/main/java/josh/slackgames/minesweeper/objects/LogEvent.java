@@ -0,0 +1,40 @@
+package josh.slackgames.minesweeper.objects;
+
+/**
+ * Activity log entry, rendered as text by the client.
+ *
+ * Codes: "join", "reset", "reveal", "flag" and "loss". Coordinates are only set for clicks.
+ */
+public class LogEvent {
+    private final String code;
+    private final String user;
+    private final Integer x;
+    private final Integer y;
+
+    public LogEvent(String code, String user, Integer x, Integer y) {
+        this.code = code;
+        this.user = user;
+        this.x = x;
+        this.y = y;
+    }
+
+    public LogEvent(String code, String user) {
+        this(code, user, null, null);
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public Integer getX() {
+        return x;
+    }
+
+    public Integer getY() {
+        return y;
+    }
+}
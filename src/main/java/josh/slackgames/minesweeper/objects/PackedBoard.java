@@ -0,0 +1,120 @@
+package josh.slackgames.minesweeper.objects;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Compact wire form of a Board, sent to clients that negotiated the packed encoding.
+ *
+ * Format "cells" is the whole board, one nibble per cell in row-major order, cell i in the
+ * high nibble of byte i / 2 when i is even and the low nibble otherwise. Format "tiles" lists
+ * only some cells, sorted by row-major index: each is a varint gap from the previous index
+ * (the first from -1) followed by a state byte. Both are base64 strings.
+ *
+ * States are the tile states sent as JSON (0-8, 10 mine, 11 exploded, 13 flag), with 15 for
+ * a hidden cell.
+ */
+public final class PackedBoard {
+
+    static final int HIDDEN = 15;
+
+    private final int width;
+    private final int height;
+    private final String format;
+    private final String data;
+
+
+    private PackedBoard(int width, int height, String format, String data) {
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.data = data;
+    }
+
+
+    /**
+     * Packs a whole board, one nibble per cell; cells without a tile are hidden
+     * @param board full board
+     * @return PackedBoard
+     */
+    public static PackedBoard cells(Board board) {
+        int cellCount = board.getWidth() * board.getHeight();
+        byte[] packed = new byte[(cellCount + 1) / 2];
+        Arrays.fill(packed, (byte) (HIDDEN << 4 | HIDDEN));
+
+        for(Tile tile : board.getTiles()) {
+            int i = tile.getY() * board.getWidth() + tile.getX();
+            int state = state(tile);
+
+            if((i & 1) == 0) {
+                packed[i >> 1] = (byte) ((packed[i >> 1] & 0x0F) | state << 4);
+            }
+            else {
+                packed[i >> 1] = (byte) ((packed[i >> 1] & 0xF0) | state);
+            }
+        }
+
+        return new PackedBoard(board.getWidth(), board.getHeight(), "cells", Base64.getEncoder().encodeToString(packed));
+    }
+
+
+    /**
+     * Packs a list of tiles as index gaps and states
+     * @param width board width
+     * @param height board height
+     * @param tiles tiles, in any order
+     * @return PackedBoard
+     */
+    public static PackedBoard tiles(int width, int height, List<Tile> tiles) {
+        long[] entries = new long[tiles.size()];
+
+        // sort by index, carrying the state in the low bits
+        for(int t = 0; t < entries.length; t++) {
+            Tile tile = tiles.get(t);
+            entries[t] = ((long) tile.getY() * width + tile.getX()) << 4 | state(tile);
+        }
+        Arrays.sort(entries);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(entries.length * 2);
+        long previous = -1;
+
+        for(long entry : entries) {
+            long index = entry >>> 4;
+            long gap = index - previous;
+            previous = index;
+
+            while(gap >= 0x80) {
+                out.write((int) (gap & 0x7F) | 0x80);
+                gap >>>= 7;
+            }
+            out.write((int) gap);
+            out.write((int) (entry & 0x0F));
+        }
+
+        return new PackedBoard(width, height, "tiles", Base64.getEncoder().encodeToString(out.toByteArray()));
+    }
+
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public String getData() {
+        return data;
+    }
+
+
+    private static int state(Tile tile) {
+        return tile.getState() == null ? HIDDEN : tile.getState();
+    }
+}
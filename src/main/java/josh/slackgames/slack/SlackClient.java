@@ -0,0 +1,346 @@
+package josh.slackgames.slack;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.DefaultResponseErrorHandler;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outbound client for every call to Slack: Web API methods such as oauth.access and
+ * chat.postMessage, and posts to a slash command's response_url.
+ *
+ * Connections are pooled and kept alive. Each workspace's calls to a Web API method are
+ * spaced out to that method's rate tier, in the order they were made; a call that would wait
+ * longer than slack.api.max-queue-ms fails instead. A 429 is retried after its Retry-After
+ * and holds back the rest of that method's queue too. Failures to connect are retried with
+ * jittered exponential backoff. Nothing that may have reached Slack is retried, e.g. a read
+ * timeout or a 5xx, since an OAuth code only works once and a message would post twice.
+ */
+@Component
+public class SlackClient {
+    private static final Logger LOG = LoggerFactory.getLogger(SlackClient.class);
+
+    /**
+     * Slack's documented per-method rate tiers, in calls per minute per workspace
+     */
+    enum Tier {
+        TIER_1(1),
+        TIER_2(20),
+        TIER_3(50),
+        TIER_4(100),
+        // chat.postMessage allows about one message per second
+        POST_MESSAGE(60);
+
+        private final long intervalNanos;
+
+        Tier(int perMinute) {
+            this.intervalNanos = TimeUnit.MINUTES.toNanos(1) / perMinute;
+        }
+    }
+
+    private static final Map<String, Tier> TIERS = new HashMap<>();
+    static {
+        TIERS.put("oauth.access", Tier.TIER_4);
+        TIERS.put("oauth.v2.access", Tier.TIER_4);
+        TIERS.put("chat.postMessage", Tier.POST_MESSAGE);
+        TIERS.put("chat.postEphemeral", Tier.TIER_4);
+        TIERS.put("chat.update", Tier.TIER_3);
+        TIERS.put("chat.delete", Tier.TIER_3);
+        TIERS.put("users.info", Tier.TIER_4);
+        TIERS.put("conversations.info", Tier.TIER_3);
+    }
+
+    private final String baseUrl;
+    private final int maxRetries;
+    private final long backoffMs;
+    private final long maxQueueNanos;
+    private final CloseableHttpClient httpClient;
+    private final RestTemplate rest;
+    private final Counter rateLimited;
+    private final Counter retried;
+
+    // next free slot of each workspace's queue for a method, by "workspace method"
+    private final Map<String, Slot> slots = new ConcurrentHashMap<>();
+
+
+    @Autowired
+    public SlackClient(MeterRegistry registry,
+                       @Value("${slack.api.base-url:https://slack.com/api}") String baseUrl,
+                       @Value("${slack.api.max-connections:20}") int maxConnections,
+                       @Value("${slack.api.connect-timeout-ms:2000}") int connectTimeoutMs,
+                       @Value("${slack.api.read-timeout-ms:10000}") int readTimeoutMs,
+                       @Value("${slack.api.max-retries:3}") int maxRetries,
+                       @Value("${slack.api.backoff-ms:500}") long backoffMs,
+                       @Value("${slack.api.max-queue-ms:30000}") long maxQueueMs) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.maxRetries = Math.max(0, maxRetries);
+        this.backoffMs = Math.max(1, backoffMs);
+        this.maxQueueNanos = TimeUnit.MILLISECONDS.toNanos(maxQueueMs);
+
+        PoolingHttpClientConnectionManager connections = new PoolingHttpClientConnectionManager();
+        connections.setMaxTotal(maxConnections);
+        connections.setDefaultMaxPerRoute(maxConnections);
+
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(connections)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(connectTimeoutMs)
+                        .setConnectionRequestTimeout(connectTimeoutMs)
+                        .setSocketTimeout(readTimeoutMs)
+                        .build())
+                .build();
+        this.rest = new RestTemplate(new HttpComponentsClientHttpRequestFactory(httpClient));
+
+        // statuses are handled here rather than thrown
+        this.rest.setErrorHandler(new DefaultResponseErrorHandler() {
+            @Override
+            public boolean hasError(ClientHttpResponse response) {
+                return false;
+            }
+        });
+
+        this.rateLimited = Counter.builder("slack.api.rate-limited")
+                .description("Slack responses asking us to slow down").register(registry);
+        this.retried = Counter.builder("slack.api.retries")
+                .description("Slack calls sent again after a failure").register(registry);
+    }
+
+
+    /**
+     * Calls a Web API method, waiting for its turn in the workspace's queue
+     * @param workspace team ID the call is made for, or null before there is one, e.g. OAuth
+     * @param method Web API method, e.g. chat.postMessage
+     * @param form form-encoded arguments, including the token where one is needed
+     * @return Slack's response
+     * @throws RestClientException if the queue is too long, or Slack can't be reached after retrying
+     */
+    public ResponseEntity<String> call(String workspace, String method, MultiValueMap<String, String> form) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
+
+        Slot slot = slots.computeIfAbsent((workspace == null ? "" : workspace) + " " + method,
+                key -> new Slot(TIERS.getOrDefault(method, Tier.TIER_3)));
+
+        return send(baseUrl + "/" + method, new HttpEntity<>(form, headers), slot);
+    }
+
+
+    /**
+     * Posts a message to a slash command's response_url. These aren't rate tiered, but are
+     * retried like Web API calls.
+     * @param responseUrl response_url sent with the command
+     * @param message message to post as JSON
+     * @return Slack's response
+     * @throws RestClientException if Slack can't be reached after retrying
+     */
+    public ResponseEntity<String> respond(String responseUrl, Object message) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON_UTF8);
+
+        return send(responseUrl, new HttpEntity<>(message, headers), null);
+    }
+
+
+    @PreDestroy
+    public void shutdown() throws IOException {
+        httpClient.close();
+    }
+
+
+    /**
+     * Sends a request once its queue slot comes up, retrying rate limits and failures to connect
+     * @param url request URL
+     * @param request body and headers
+     * @param slot queue the request waits in, or null to send straight away
+     * @return Slack's response
+     */
+    private ResponseEntity<String> send(String url, HttpEntity<?> request, Slot slot) {
+        for(int attempt = 0; ; attempt++) {
+            // only new calls are turned away, retries keep their place
+            if(slot != null) {
+                sleepNanos(slot.reserve(attempt == 0 ? maxQueueNanos : Long.MAX_VALUE, url));
+            }
+
+            ResponseEntity<String> response;
+            try {
+                response = rest.exchange(url, HttpMethod.POST, request, String.class);
+            }
+            catch(RestClientException e) {
+                if(attempt >= maxRetries || !notSent(e)) {
+                    throw e;
+                }
+                retry(url, attempt, e.getMessage());
+                continue;
+            }
+
+            if(response.getStatusCode() == HttpStatus.TOO_MANY_REQUESTS) {
+                rateLimited.increment();
+                long waitNanos = TimeUnit.SECONDS.toNanos(retryAfter(response));
+
+                // everyone else in the queue waits too
+                if(slot != null) {
+                    slot.holdOff(waitNanos);
+                }
+
+                if(attempt >= maxRetries) {
+                    return response;
+                }
+
+                LOG.info("Slack rate limited {}, retrying in {}s", url, TimeUnit.NANOSECONDS.toSeconds(waitNanos));
+                retried.increment();
+                if(slot == null) {
+                    sleepNanos(waitNanos + jitter(TimeUnit.MILLISECONDS.toNanos(backoffMs)));
+                }
+                continue;
+            }
+
+            return response;
+        }
+    }
+
+
+    /**
+     * Waits out an exponential, jittered backoff before another attempt
+     * @param url request URL
+     * @param attempt attempts made so far, less one
+     * @param reason what went wrong
+     */
+    private void retry(String url, int attempt, String reason) {
+        long delayNanos = jitter(TimeUnit.MILLISECONDS.toNanos(backoffMs << Math.min(attempt, 16)));
+
+        LOG.warn("Slack call to {} failed ({}), retrying in {}ms", url, reason, TimeUnit.NANOSECONDS.toMillis(delayNanos));
+        retried.increment();
+        sleepNanos(delayNanos);
+    }
+
+
+    /**
+     * Checks if a failed request is known never to have reached Slack: the connection
+     * couldn't be made, or no pooled connection was free
+     * @param e failure
+     * @return boolean
+     */
+    private static boolean notSent(RestClientException e) {
+        for(Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+            if(cause instanceof ConnectException || cause instanceof ConnectTimeoutException
+                    || cause instanceof UnknownHostException || cause instanceof ConnectionPoolTimeoutException) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Reads the seconds to wait from a 429's Retry-After header
+     * @param response 429 response
+     * @return seconds, at least 1
+     */
+    private static long retryAfter(ResponseEntity<String> response) {
+        String header = response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER);
+
+        try {
+            return header == null ? 1 : Math.max(1, Long.parseLong(header.trim()));
+        }
+        catch(NumberFormatException e) {
+            return 1;
+        }
+    }
+
+
+    /**
+     * Spreads a delay over half to one and a half times its length
+     * @param nanos delay
+     * @return jittered delay
+     */
+    private static long jitter(long nanos) {
+        return nanos / 2 + ThreadLocalRandom.current().nextLong(nanos + 1);
+    }
+
+
+    private static void sleepNanos(long nanos) {
+        if(nanos <= 0) {
+            return;
+        }
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RestClientException("Interrupted while waiting to call Slack", e);
+        }
+    }
+
+
+    /**
+     * One workspace's queue for one method: calls take the next free slot and wait for it,
+     * so they go out in order and no faster than the tier allows; guarded by its own monitor
+     */
+    private static final class Slot {
+        private final long intervalNanos;
+        private long next = System.nanoTime();
+
+        private Slot(Tier tier) {
+            this.intervalNanos = tier.intervalNanos;
+        }
+
+        /**
+         * Takes the next free slot
+         * @param maxWaitNanos longest wait allowed
+         * @param url request URL, for the error
+         * @return nanoseconds to wait before sending
+         */
+        private synchronized long reserve(long maxWaitNanos, String url) {
+            long now = System.nanoTime();
+            long slot = Math.max(now, next);
+
+            if(slot - now > maxWaitNanos) {
+                throw new RestClientException("Too many queued calls to " + url);
+            }
+
+            next = slot + intervalNanos;
+            return slot - now;
+        }
+
+        /**
+         * Pushes the queue back after Slack asked us to wait
+         * @param waitNanos how long Slack asked us to wait
+         */
+        private synchronized void holdOff(long waitNanos) {
+            next = Math.max(next, System.nanoTime() + waitNanos);
+        }
+    }
+}
@@ -2,11 +2,10 @@ package josh.slackgames.slack;
 
 import josh.slackgames.slack.objects.Action;
 import josh.slackgames.slack.objects.Attachment;
+import josh.slackgames.slack.objects.Installation;
 import josh.slackgames.slack.objects.Message;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.http.HttpEntity;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
@@ -14,7 +13,6 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
-import org.springframework.web.client.RestTemplate;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -35,9 +33,19 @@ public class SlackController {
     @Value("${SG_DOMAIN}")
     private String sgDomain;
 
+    @Autowired
+    private SlashCommandWorker commands;
+
+    @Autowired
+    private SlackClient slack;
+
+    @Autowired
+    private WorkspaceTokens tokens;
+
 
     /**
-     * Handler for slash-command action
+     * Handler for slash-command action. In async mode the command is acknowledged with an
+     * empty reply and the game menu follows through the command's response_url.
      * @param paramMap form-encoded parameters from Slack
      * @return ResponseEntity
      */
@@ -49,7 +57,32 @@ public class SlackController {
         String text = paramMap.getFirst("text").trim();
         String userId = paramMap.getFirst("user_id");
         String userName = paramMap.getFirst("user_name");
+        String responseUrl = paramMap.getFirst("response_url");
+
+        if(commands.isAsync() && commands.accepts(responseUrl)) {
+            if(commands.submit(responseUrl, () -> gameMenu(channelId, userId))) {
+                return ResponseEntity.ok().build();
+            }
+
+            Message busy = new Message.MessageBuilder()
+                    .responseType(Message.ResponseType.ephemeral)
+                    .text("Slack Games is busy right now, please try again in a moment.")
+                    .build();
+
+            return ResponseEntity.ok(busy);
+        }
+
+        return ResponseEntity.ok(gameMenu(channelId, userId));
+    }
+
 
+    /**
+     * Builds the reply to the slash command: a button per game
+     * @param channelId Channel ID
+     * @param userId User ID
+     * @return Message
+     */
+    private Message gameMenu(String channelId, String userId) {
         Action act = new Action.ActionBuilder()
                 .text("Minesweeper")
                 .type("button")
@@ -63,34 +96,33 @@ public class SlackController {
         List<Attachment> atcList = new ArrayList<>();
         atcList.add(atc);
 
-        Message msg = new Message.MessageBuilder()
+        return new Message.MessageBuilder()
                 .text("Select a game to start:")
                 .attachments(atcList)
                 .build();
-
-        return ResponseEntity.ok(msg);
     }
 
 
     /**
-     * Authroization handler for Slack
+     * Authroization handler for Slack. Stores the workspace's tokens rather than showing them to the browser.
      * @param code Auth code
      * @return ResponseEntity
      */
     @RequestMapping("/authorize")
     public ResponseEntity authorize(@RequestParam String code) {
 
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
-
         MultiValueMap<String, String> map = new LinkedMultiValueMap<>();
         map.add("client_id", clientId);
         map.add("client_secret", clientSecret);
-        map.add("code", code);        HttpEntity<MultiValueMap<String, String>> entity = new HttpEntity<>(map, headers);
+        map.add("code", code);
+
+        Installation installation = tokens.install(slack.call(null, "oauth.access", map).getBody());
 
-        RestTemplate rt = new RestTemplate();
-        String response = rt.postForObject("https://slack.com/api/oauth.access", entity, String.class);
+        if(installation == null) {
+            return ResponseEntity.badRequest().body("Slack Games could not be installed, please try again.");
+        }
 
-        return ResponseEntity.ok(response);
+        return ResponseEntity.ok(String.format("Slack Games is installed to %s.",
+                installation.getTeamName() != null ? installation.getTeamName() : installation.getTeamId()));
     }
 }
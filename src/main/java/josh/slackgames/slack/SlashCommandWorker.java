@@ -0,0 +1,132 @@
+package josh.slackgames.slack;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import josh.slackgames.slack.objects.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestClientException;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Builds slash-command replies off the request thread, enabled with slack.commands.mode=async.
+ *
+ * The command is acknowledged straight away and its reply is built on a bounded pool and
+ * posted to the command's response_url, so slow work never runs into Slack's 3 second
+ * deadline. When slack.commands.queue replies are already waiting, new commands are turned
+ * away rather than queued without limit. Only response URLs under
+ * slack.commands.response-url-prefix are posted to.
+ */
+@Component
+public class SlashCommandWorker {
+    private static final Logger LOG = LoggerFactory.getLogger(SlashCommandWorker.class);
+
+    private final boolean async;
+    private final String responseUrlPrefix;
+    private final ThreadPoolExecutor executor;
+    private final SlackClient slack;
+    private final Counter rejected;
+    private final Counter failed;
+
+
+    @Autowired
+    public SlashCommandWorker(MeterRegistry registry,
+                              SlackClient slack,
+                              @Value("${slack.commands.mode:sync}") String mode,
+                              @Value("${slack.commands.threads:4}") int threads,
+                              @Value("${slack.commands.queue:100}") int queue,
+                              @Value("${slack.commands.response-url-prefix:https://hooks.slack.com/}") String responseUrlPrefix) {
+        this.async = "async".equalsIgnoreCase(mode);
+        this.responseUrlPrefix = responseUrlPrefix;
+        this.executor = async
+                ? new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Math.max(1, queue)))
+                : null;
+
+        this.slack = slack;
+
+        this.rejected = Counter.builder("slack.commands.rejected")
+                .description("Commands turned away because the reply queue was full").register(registry);
+        this.failed = Counter.builder("slack.commands.failed")
+                .description("Replies that could not be built or posted").register(registry);
+
+        if(executor != null) {
+            Gauge.builder("slack.commands.queue", executor, pool -> pool.getQueue().size())
+                    .description("Replies waiting for a worker").register(registry);
+        }
+    }
+
+
+    /**
+     * Checks if commands should be acknowledged now and answered later
+     * @return boolean
+     */
+    public boolean isAsync() {
+        return async;
+    }
+
+
+    /**
+     * Checks if a command's replies may be posted to its response URL
+     * @param responseUrl response_url sent with the command
+     * @return boolean
+     */
+    boolean accepts(String responseUrl) {
+        return responseUrl != null && responseUrl.startsWith(responseUrlPrefix);
+    }
+
+
+    /**
+     * Queues a reply to be built and posted to a command's response URL
+     * @param responseUrl response_url sent with the command, see {@link #accepts(String)}
+     * @param reply builds the reply
+     * @return false if the queue is full and the command should be turned away
+     */
+    boolean submit(String responseUrl, Supplier<Message> reply) {
+        try {
+            executor.execute(() -> post(responseUrl, reply));
+            return true;
+        }
+        catch(RejectedExecutionException e) {
+            rejected.increment();
+            return false;
+        }
+    }
+
+
+    @PreDestroy
+    public void shutdown() {
+        if(executor != null) {
+            executor.shutdown();
+        }
+    }
+
+
+    /**
+     * Builds a reply and posts it
+     * @param responseUrl command's response URL
+     * @param reply builds the reply
+     */
+    private void post(String responseUrl, Supplier<Message> reply) {
+        try {
+            slack.respond(responseUrl, reply.get());
+        }
+        catch(RestClientException e) {
+            failed.increment();
+            LOG.warn("Failed to post slash command reply: {}", e.getMessage());
+        }
+        catch(RuntimeException e) {
+            failed.increment();
+            LOG.error("Failed to build slash command reply", e);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package josh.slackgames.slack;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import josh.slackgames.slack.objects.Installation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the workspaces that installed the app and their bot and user tokens.
+ *
+ * Lookups are served from memory, so outbound calls never wait on the disk. With
+ * slack.tokens.file set, every install is also appended to that file as a line of JSON and
+ * synced before it is acknowledged; on startup the file is read back and the newest line for
+ * each workspace wins. A line left half-written by a crash is skipped. Without the file,
+ * installs only last until a restart. The file holds live tokens, so it and any directory
+ * created for it are readable by the owner only.
+ */
+@Component
+public class WorkspaceTokens {
+    private static final Logger LOG = LoggerFactory.getLogger(WorkspaceTokens.class);
+
+    private static final boolean POSIX = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+    private static final Set<PosixFilePermission> FILE_PERMISSIONS = PosixFilePermissions.fromString("rw-------");
+    private static final Set<PosixFilePermission> DIR_PERMISSIONS = PosixFilePermissions.fromString("rwx------");
+
+    private final ObjectMapper mapper;
+    private final Path file;
+    private final Map<String, Installation> installations = new ConcurrentHashMap<>();
+
+
+    @Autowired
+    public WorkspaceTokens(ObjectMapper mapper,
+                           @Value("${slack.tokens.file:}") String file) {
+        this.mapper = mapper;
+        this.file = file.isEmpty() ? null : Paths.get(file);
+    }
+
+
+    /**
+     * Reads the installations saved by earlier runs
+     * @throws IOException if the file exists but can't be read
+     */
+    @PostConstruct
+    public void load() throws IOException {
+        if(file == null || !Files.exists(file)) {
+            return;
+        }
+
+        // files written before permissions were restricted
+        restrict(file, FILE_PERMISSIONS);
+
+        int number = 0;
+        try(BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                number++;
+                if(line.trim().isEmpty()) {
+                    continue;
+                }
+
+                try {
+                    Installation installation = mapper.readValue(line, Installation.class);
+                    if(installation.getTeamId() != null) {
+                        installations.put(installation.getTeamId(), installation);
+                    }
+                }
+                catch(IOException e) {
+                    LOG.warn("Skipping unreadable line {} of {}", number, file);
+                }
+            }
+        }
+
+        LOG.info("Loaded {} workspace installations from {}", installations.size(), file);
+    }
+
+
+    /**
+     * Gets a workspace's installation
+     * @param teamId Team ID
+     * @return Installation, or null if the workspace hasn't installed the app
+     */
+    public Installation get(String teamId) {
+        return teamId == null ? null : installations.get(teamId);
+    }
+
+
+    /**
+     * Gets the bot token to call the Web API with for a workspace
+     * @param teamId Team ID
+     * @return bot token, or null if the workspace hasn't installed the app
+     */
+    public String botToken(String teamId) {
+        Installation installation = get(teamId);
+        return installation == null ? null : installation.getBotToken();
+    }
+
+
+    /**
+     * Parses an oauth.access response and stores the tokens it grants
+     * @param response oauth.access response body
+     * @return the new installation, or null if Slack refused the code
+     */
+    public Installation install(String response) {
+        JsonNode root;
+        try {
+            root = mapper.readTree(response == null ? "" : response);
+        }
+        catch(IOException e) {
+            LOG.warn("Unreadable oauth.access response", e);
+            return null;
+        }
+
+        if(root == null || !root.path("ok").asBoolean() || root.path("team_id").asText(null) == null) {
+            LOG.warn("Slack refused installation: {}", root == null ? null : root.path("error").asText(null));
+            return null;
+        }
+
+        Installation installation = new Installation();
+        installation.setTeamId(root.path("team_id").asText());
+        installation.setTeamName(root.path("team_name").asText(null));
+        installation.setScope(root.path("scope").asText(null));
+        installation.setUserId(root.path("user_id").asText(null));
+        installation.setUserToken(root.path("access_token").asText(null));
+        installation.setBotUserId(root.path("bot").path("bot_user_id").asText(null));
+        installation.setBotToken(root.path("bot").path("bot_access_token").asText(null));
+        installation.setInstalledAt(System.currentTimeMillis());
+
+        save(installation);
+
+        return installation;
+    }
+
+
+    /**
+     * Stores an installation, replacing the workspace's earlier one. The file and the cache are
+     * updated under one lock, so both agree on which install for a workspace came last.
+     * @param installation Installation
+     */
+    public synchronized void save(Installation installation) {
+        if(file != null) {
+            append(installation);
+        }
+
+        installations.put(installation.getTeamId(), installation);
+        LOG.info("Installed to workspace {} ({})", installation.getTeamId(), installation.getTeamName());
+    }
+
+
+    public int size() {
+        return installations.size();
+    }
+
+
+    /**
+     * Appends an installation to the file and syncs it. Caller must hold this object's monitor.
+     * @param installation Installation
+     */
+    private void append(Installation installation) {
+        try {
+            byte[] line = (mapper.writeValueAsString(installation) + "\n").getBytes(StandardCharsets.UTF_8);
+
+            Path dir = file.toAbsolutePath().getParent();
+            if(dir != null && !Files.isDirectory(dir)) {
+                if(POSIX) {
+                    Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(DIR_PERMISSIONS));
+                }
+                else {
+                    Files.createDirectories(dir);
+                    restrict(dir, DIR_PERMISSIONS);
+                }
+            }
+
+            if(!Files.exists(file)) {
+                if(POSIX) {
+                    Files.createFile(file, PosixFilePermissions.asFileAttribute(FILE_PERMISSIONS));
+                }
+                else {
+                    Files.createFile(file);
+                    restrict(file, FILE_PERMISSIONS);
+                }
+            }
+
+            try(FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+                // start a fresh line after one a crash left unfinished
+                ByteBuffer last = ByteBuffer.allocate(1);
+                if(channel.size() > 0 && channel.read(last, channel.size() - 1) == 1 && last.get(0) != '\n') {
+                    channel.write(ByteBuffer.wrap(new byte[] { '\n' }), channel.size());
+                }
+
+                ByteBuffer buffer = ByteBuffer.wrap(line);
+                channel.position(channel.size());
+                while(buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            }
+        }
+        catch(IOException e) {
+            throw new UncheckedIOException("Could not save installation to " + file, e);
+        }
+    }
+
+
+    /**
+     * Makes a file or directory accessible to its owner only, as closely as the file system allows
+     * @param path file or directory
+     * @param permissions POSIX permissions to set
+     * @throws IOException if the permissions can't be changed
+     */
+    private static void restrict(Path path, Set<PosixFilePermission> permissions) throws IOException {
+        if(POSIX) {
+            Files.setPosixFilePermissions(path, permissions);
+            return;
+        }
+
+        File f = path.toFile();
+        boolean executable = Files.isDirectory(path);
+        f.setReadable(false, false);
+        f.setWritable(false, false);
+        f.setExecutable(false, false);
+        f.setReadable(true, true);
+        f.setWritable(true, true);
+        f.setExecutable(executable, true);
+    }
+}
@@ -0,0 +1,76 @@
+package josh.slackgames.slack.objects;
+
+/**
+ * Tokens and identity of one workspace that installed the app, from its oauth.access response
+ */
+public class Installation {
+    private String teamId, teamName, scope, userId, userToken, botUserId, botToken;
+    private long installedAt;
+
+    public Installation() {
+    }
+
+    public String getTeamId() {
+        return teamId;
+    }
+
+    public void setTeamId(String teamId) {
+        this.teamId = teamId;
+    }
+
+    public String getTeamName() {
+        return teamName;
+    }
+
+    public void setTeamName(String teamName) {
+        this.teamName = teamName;
+    }
+
+    public String getScope() {
+        return scope;
+    }
+
+    public void setScope(String scope) {
+        this.scope = scope;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public String getUserToken() {
+        return userToken;
+    }
+
+    public void setUserToken(String userToken) {
+        this.userToken = userToken;
+    }
+
+    public String getBotUserId() {
+        return botUserId;
+    }
+
+    public void setBotUserId(String botUserId) {
+        this.botUserId = botUserId;
+    }
+
+    public String getBotToken() {
+        return botToken;
+    }
+
+    public void setBotToken(String botToken) {
+        this.botToken = botToken;
+    }
+
+    public long getInstalledAt() {
+        return installedAt;
+    }
+
+    public void setInstalledAt(long installedAt) {
+        this.installedAt = installedAt;
+    }
+}
@@ -0,0 +1,96 @@
+package josh.slackgames;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.stomp.ReactorNettyTcpStompClient;
+import org.springframework.messaging.simp.stomp.StompBrokerRelayMessageHandler;
+import org.springframework.messaging.simp.stomp.StompFrameHandler;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandlerAdapter;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.lang.reflect.Type;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = "minesweeper.broker.mode=relay")
+public class BrokerRelayTests {
+
+    private static EmbeddedStompBroker broker;
+
+    @Autowired
+    private SimpMessagingTemplate template;
+
+    @Autowired
+    private StompBrokerRelayMessageHandler relay;
+
+
+    @BeforeClass
+    public static void startBroker() throws Exception {
+        broker = new EmbeddedStompBroker();
+        System.setProperty("minesweeper.broker.relay-port", String.valueOf(broker.getPort()));
+    }
+
+
+    @AfterClass
+    public static void stopBroker() throws Exception {
+        System.clearProperty("minesweeper.broker.relay-port");
+        broker.stop();
+    }
+
+
+    @Test
+    public void channelMessagesReachSubscribersOfTheExternalBroker() throws Exception {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while(!relay.isBrokerAvailable() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue(relay.isBrokerAvailable());
+
+        // a client of the broker itself, as if connected through another instance
+        ReactorNettyTcpStompClient client = new ReactorNettyTcpStompClient("localhost", broker.getPort());
+        client.setMessageConverter(new MappingJackson2MessageConverter());
+        BlockingQueue<Map> received = new LinkedBlockingQueue<>();
+
+        try {
+            StompSession session = client.connect(new StompSessionHandlerAdapter() {}).get(10, TimeUnit.SECONDS);
+            session.subscribe("/topic/minesweeper/C1", new StompFrameHandler() {
+                @Override
+                public Type getPayloadType(StompHeaders headers) {
+                    return Map.class;
+                }
+
+                @Override
+                public void handleFrame(StompHeaders headers, Object payload) {
+                    received.add((Map) payload);
+                }
+            });
+
+            // the subscription is registered asynchronously, so publish until it arrives
+            Map message = null;
+            while(message == null && System.currentTimeMillis() < deadline) {
+                template.convertAndSend("/topic/minesweeper/C1", new WSMessage("log", "relayed"));
+                message = received.poll(200, TimeUnit.MILLISECONDS);
+            }
+
+            assertNotNull(message);
+            assertEquals("log", message.get("type"));
+            assertEquals("relayed", message.get("message"));
+        }
+        finally {
+            client.shutdown();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package josh.slackgames;
+
+import josh.slackgames.minesweeper.ClusterNodes;
+import josh.slackgames.minesweeper.MinesweeperService;
+import josh.slackgames.minesweeper.objects.Game;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class ClusterTests {
+
+    private static final String SECRET = "test-secret";
+
+    private ConfigurableApplicationContext a;
+    private ConfigurableApplicationContext b;
+
+
+    @After
+    public void stopNodes() {
+        if(a != null) {
+            a.close();
+        }
+        if(b != null) {
+            b.close();
+        }
+    }
+
+
+    @Test
+    public void gamesLiveOnTheirOwnerAndMoveWhenItLeaves() throws Exception {
+        int portA = freePort();
+        int portB = freePort();
+        String nodes = "http://localhost:" + portA + ",http://localhost:" + portB;
+
+        a = start(portA, nodes);
+        b = start(portB, nodes);
+
+        MinesweeperService gamesA = a.getBean(MinesweeperService.class);
+        MinesweeperService gamesB = b.getBean(MinesweeperService.class);
+
+        // both nodes are up, so one round of pings each lets them see each other
+        a.getBean(ClusterNodes.class).checkMembers();
+        b.getBean(ClusterNodes.class).checkMembers();
+        assertEquals(2, a.getBean(ClusterNodes.class).getMembers().size());
+        assertEquals(2, b.getBean(ClusterNodes.class).getMembers().size());
+
+        // start games through node A; each should end up on exactly one node
+        RestTemplate rest = new RestTemplate();
+        for(int i = 0; i < 20; i++) {
+            ResponseEntity<String> response = rest.postForEntity(
+                    "http://localhost:" + portA + "/api/v1/minesweeper/start-game?channelId=C" + i, null, String.class);
+            assertEquals(HttpStatus.OK, response.getStatusCode());
+        }
+
+        assertEquals(20, gamesA.getGameCount() + gamesB.getGameCount());
+        assertTrue(gamesA.getGameCount() > 0);
+        assertTrue(gamesB.getGameCount() > 0);
+
+        // a clean shutdown hands everything to the remaining node
+        a.close();
+        a = null;
+
+        assertEquals(20, gamesB.getGameCount());
+    }
+
+
+    @Test
+    public void ownerClaimsGamesHeldByAnotherNode() throws Exception {
+        int portA = freePort();
+        int portB = freePort();
+        String nodes = "http://localhost:" + portA + ",http://localhost:" + portB;
+
+        a = start(portA, nodes);
+        b = start(portB, nodes);
+        a.getBean(ClusterNodes.class).checkMembers();
+        b.getBean(ClusterNodes.class).checkMembers();
+
+        MinesweeperService gamesA = a.getBean(MinesweeperService.class);
+        MinesweeperService gamesB = b.getBean(MinesweeperService.class);
+
+        // put every game on A, whichever node owns its channel
+        RestTemplate rest = new RestTemplate();
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("X-Cluster-Secret", SECRET);
+        headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+
+        for(int i = 0; i < 20; i++) {
+            Game game = new Game(MinesweeperService.Level.BEGINNER);
+            ByteBuffer encoded = ByteBuffer.allocate(game.snapshotSize());
+            game.writeSnapshot(encoded);
+
+            rest.postForEntity("http://localhost:" + portA + "/api/v1/minesweeper/cluster/adopt?channelId=C" + i,
+                    new HttpEntity<>(encoded.array(), headers), String.class);
+        }
+        assertEquals(20, gamesA.getGameCount());
+
+        // starting through B finds each game wherever it is, claiming those B owns, so none is started twice
+        for(int i = 0; i < 20; i++) {
+            try {
+                rest.postForEntity("http://localhost:" + portB + "/api/v1/minesweeper/start-game?channelId=C" + i, null, String.class);
+                fail();
+            }
+            catch(HttpClientErrorException e) {
+                assertEquals(HttpStatus.CONFLICT, e.getStatusCode());
+            }
+        }
+
+        assertEquals(20, gamesA.getGameCount() + gamesB.getGameCount());
+        assertTrue(gamesB.getGameCount() > 0);
+    }
+
+
+    private static ConfigurableApplicationContext start(int port, String nodes) {
+        return new SpringApplicationBuilder(SlackGamesApplication.class).run(
+                "--server.port=" + port,
+                "--minesweeper.cluster.enabled=true",
+                "--minesweeper.cluster.self=http://localhost:" + port,
+                "--minesweeper.cluster.nodes=" + nodes,
+                "--minesweeper.cluster.secret=" + SECRET,
+                "--minesweeper.cluster.ping-interval-ms=200");
+    }
+
+
+    private static int freePort() throws Exception {
+        try(ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package josh.slackgames;
+
+import org.apache.activemq.broker.BrokerService;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+/**
+ * In-process ActiveMQ broker with a STOMP connector on a free port, standing in for the
+ * external broker used with minesweeper.broker.mode=relay
+ */
+public class EmbeddedStompBroker {
+
+    private final BrokerService broker;
+    private final int port;
+
+
+    public EmbeddedStompBroker() throws Exception {
+        this.port = freePort();
+        this.broker = new BrokerService();
+        this.broker.setBrokerName("embedded-stomp");
+        this.broker.setPersistent(false);
+        this.broker.setUseJmx(false);
+        this.broker.addConnector("stomp://localhost:" + port);
+        this.broker.start();
+        this.broker.waitUntilStarted();
+    }
+
+
+    public int getPort() {
+        return port;
+    }
+
+
+    public void stop() throws Exception {
+        broker.stop();
+        broker.waitUntilStopped();
+    }
+
+
+    private static int freePort() throws IOException {
+        try(ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
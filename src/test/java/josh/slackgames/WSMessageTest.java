@@ -0,0 +1,20 @@
+package josh.slackgames;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class WSMessageTest {
+
+    @Test
+    public void eventsAreOnlySentWithActivity() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+
+        assertFalse(mapper.writeValueAsString(new WSMessage("initial", null, "board")).contains("events"));
+        assertTrue(mapper.writeValueAsString(new WSMessage("log", null, null, Collections.singletonList("join")))
+                .contains("\"events\":[\"join\"]"));
+    }
+}
@@ -0,0 +1,34 @@
+package josh.slackgames.minesweeper;
+
+import josh.slackgames.minesweeper.objects.Game;
+import org.junit.Test;
+
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class ClickMailboxTest {
+
+    @Test
+    public void clicksSkipAGameReplacedWhileTheyWaited() {
+        MinesweeperService msService = mock(MinesweeperService.class);
+        Game stale = new Game(MinesweeperService.Level.BEGINNER);
+        Game live = new Game(MinesweeperService.Level.BEGINNER);
+
+        // the drain fetches the old game, which is reset before it takes the monitor
+        when(msService.getGame("C1")).thenReturn(stale, live);
+        when(msService.isCurrent("C1", stale)).thenReturn(false);
+        when(msService.isCurrent("C1", live)).thenReturn(true);
+
+        ClickMailbox mailbox = new ClickMailbox(msService, mock(FrameBatcher.class), "mailbox", 1, 64);
+        try {
+            mailbox.submitClick("C1", "U1", ClickMailbox.REVEAL, 1, 1);
+
+            verify(msService, timeout(1000)).revealTile("C1", live, 1, 1);
+            verify(msService, never()).revealTile(eq("C1"), same(stale), anyInt(), anyInt());
+        }
+        finally {
+            mailbox.shutdown();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package josh.slackgames.minesweeper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+public class ClickThrottleTest {
+
+    @Test
+    public void userIsThrottledAfterBurstAndRecovers() throws Exception {
+        ClickThrottle throttle = new ClickThrottle(mock(MinesweeperService.class), 20, 5, 0, 1);
+
+        for(int i = 0; i < 5; i++) {
+            assertTrue(throttle.admit("C1", "U1"));
+        }
+        assertFalse(throttle.admit("C1", "U1"));
+
+        // other users have their own bucket
+        assertTrue(throttle.admit("C1", "U2"));
+
+        Thread.sleep(100);
+        assertTrue(throttle.admit("C1", "U1"));
+        assertEquals(1, throttle.getThrottled());
+    }
+
+
+    @Test
+    public void channelLimitAppliesAcrossUsers() {
+        ClickThrottle throttle = new ClickThrottle(mock(MinesweeperService.class), 0, 1, 1, 3);
+
+        assertTrue(throttle.admit("C1", "U1"));
+        assertTrue(throttle.admit("C1", "U2"));
+        assertTrue(throttle.admit("C1", "U3"));
+        assertFalse(throttle.admit("C1", "U4"));
+        assertTrue(throttle.admit("C2", "U4"));
+    }
+}
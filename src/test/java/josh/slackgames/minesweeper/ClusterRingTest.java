@@ -0,0 +1,56 @@
+package josh.slackgames.minesweeper;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ClusterRingTest {
+
+    private static final int CHANNELS = 20000;
+
+
+    @Test
+    public void channelsSpreadEvenlyOverNodes() {
+        ClusterRing ring = new ClusterRing(Arrays.asList("http://a", "http://b", "http://c", "http://d"), 128);
+
+        Map<String, Integer> counts = new HashMap<>();
+        for(int i = 0; i < CHANNELS; i++) {
+            counts.merge(ring.owner("C" + i), 1, Integer::sum);
+        }
+
+        assertEquals(4, counts.size());
+        for(int count : counts.values()) {
+            assertTrue("uneven share: " + counts, Math.abs(count - CHANNELS / 4) < CHANNELS / 4 * 0.3);
+        }
+    }
+
+
+    @Test
+    public void joiningNodeOnlyTakesChannelsFromOthers() {
+        ClusterRing before = new ClusterRing(Arrays.asList("http://a", "http://b", "http://c"), 128);
+        ClusterRing after = new ClusterRing(Arrays.asList("http://a", "http://b", "http://c", "http://d"), 128);
+
+        int moved = 0;
+        for(int i = 0; i < CHANNELS; i++) {
+            String channelId = "C" + i;
+            if(!before.owner(channelId).equals(after.owner(channelId))) {
+                assertEquals("http://d", after.owner(channelId));
+                moved++;
+            }
+        }
+
+        // about a quarter of the channels move, all of them to the new node
+        assertTrue("moved " + moved, Math.abs(moved - CHANNELS / 4) < CHANNELS / 4 * 0.3);
+        assertEquals(before.getNodes(), after.without("http://d", 128).getNodes());
+    }
+
+
+    @Test
+    public void emptyRingHasNoOwner() {
+        assertNull(new ClusterRing(Arrays.asList("http://a"), 16).without("http://a", 16).owner("C1"));
+    }
+}
@@ -0,0 +1,62 @@
+package josh.slackgames.minesweeper.objects;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class ChunkedGameTest {
+
+    @Test
+    public void chunksHoldExactlyTheMinesAndCountsMatch() {
+        for(int i = 0; i < 20; i++) {
+            ChunkedGame game = new ChunkedGame(100, 70, 1000, i);
+            assertNotEquals(Integer.valueOf(-4), game.revealTile(i, 2 * i));
+
+            int mines = 0;
+            for(int y = 0; y < 70; y++) {
+                for(int x = 0; x < 100; x++) {
+                    if(game.isMine(x, y)) {
+                        mines++;
+                    }
+                }
+            }
+            assertEquals(1000, mines);
+
+            for(Tile tile : game.getBoard().getTiles()) {
+                int count = 0;
+                for(int y = tile.getY() - 1; y <= tile.getY() + 1; y++) {
+                    for(int x = tile.getX() - 1; x <= tile.getX() + 1; x++) {
+                        if(game.validPoint(x, y) && (x != tile.getX() || y != tile.getY()) && game.isMine(x, y)) {
+                            count++;
+                        }
+                    }
+                }
+
+                assertEquals(Integer.valueOf(count), tile.getState());
+            }
+        }
+    }
+
+
+    @Test
+    public void memoryFollowsTheExploredArea() {
+        ChunkedGame game = new ChunkedGame(4000, 4000, 2_400_000, 7);
+        game.revealTile(2000, 2000);
+        game.flagTile(10, 10);
+
+        assertTrue(game.estimateBytes() < 1_000_000);
+
+        ByteBuffer snapshot = ByteBuffer.allocate(game.snapshotSize());
+        game.writeSnapshot(snapshot);
+        snapshot.flip();
+        Game restored = Game.readSnapshot(snapshot);
+
+        assertTrue(restored instanceof ChunkedGame);
+        assertTrue(restored.isFlagged(10, 10));
+        assertEquals(game.getNumRevealed(), restored.getNumRevealed());
+        assertEquals(game.getSafeRemaining(), restored.getSafeRemaining());
+        assertEquals(game.getBoard().getTiles().size(), restored.getBoard().getTiles().size());
+    }
+}
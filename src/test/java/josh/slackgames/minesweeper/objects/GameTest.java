@@ -0,0 +1,129 @@
+package josh.slackgames.minesweeper.objects;
+
+import josh.slackgames.minesweeper.MinesweeperService;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class GameTest {
+
+    @Test
+    public void firstClickIsNeverAMine() {
+        for(int i = 0; i < 200; i++) {
+            Game game = new Game(MinesweeperService.Level.EXPERT);
+            assertNotEquals(Integer.valueOf(-4), game.revealTile(i % 30, i % 16));
+        }
+    }
+
+
+    @Test
+    public void revealReportsExactlyTheNewCells() {
+        for(int i = 0; i < 200; i++) {
+            Game game = new Game(MinesweeperService.Level.INTERMEDIATE);
+            game.revealTile(8, 8);
+
+            Set<Integer> revealed = new HashSet<>();
+            for(Tile tile : game.getBoard().getTiles()) {
+                revealed.add(tile.getY() * game.getWidth() + tile.getX());
+            }
+
+            Set<Integer> reported = new HashSet<>();
+            for(int cell : game.getLastRevealed()) {
+                assertTrue("cell reported twice", reported.add(cell));
+            }
+
+            assertEquals(revealed, reported);
+            assertEquals(revealed.size(), game.getNumRevealed());
+            assertEquals(16 * 16 - 40 - revealed.size(), game.getSafeRemaining());
+        }
+    }
+
+
+    @Test
+    public void revealedTileIgnoresFurtherClicks() {
+        Game game = new Game(MinesweeperService.Level.BEGINNER);
+        game.revealTile(0, 0);
+
+        assertEquals(Integer.valueOf(-2), game.revealTile(0, 0));
+        assertEquals(Integer.valueOf(-2), game.flagTile(0, 0));
+    }
+
+
+    @Test
+    public void hibernatedGamePlaysOnUnchanged() {
+        for(int i = 0; i < 50; i++) {
+            Game awake = new Game(MinesweeperService.Level.EXPERT, i);
+            Game dormant = new Game(MinesweeperService.Level.EXPERT, i);
+            Random clicks = new Random(i);
+
+            for(int k = 0; k < 40; k++) {
+                int x = clicks.nextInt(30);
+                int y = clicks.nextInt(16);
+                boolean flag = clicks.nextInt(5) == 0;
+
+                dormant.hibernate();
+                assertTrue(dormant.isHibernating());
+
+                Integer expected = flag ? awake.flagTile(x, y) : awake.revealTile(x, y);
+                Integer actual = flag ? dormant.flagTile(x, y) : dormant.revealTile(x, y);
+
+                assertEquals(expected, actual);
+                assertEquals(awake.getNumRevealed(), dormant.getNumRevealed());
+            }
+
+            dormant.hibernate();
+            assertEquals(describe(awake.getBoard()), describe(dormant.getBoard()));
+        }
+    }
+
+
+    private static List<String> describe(Board board) {
+        List<String> tiles = new ArrayList<>();
+        for(Tile tile : board.getTiles()) {
+            tiles.add(tile.getX() + "," + tile.getY() + "=" + tile.getState());
+        }
+
+        return tiles;
+    }
+
+
+    @Test
+    public void malformedSnapshotsAreRejectedBeforeDecoding() {
+        Game game = new Game(MinesweeperService.Level.EXPERT);
+        game.revealTile(5, 5);
+
+        ByteBuffer out = ByteBuffer.allocate(game.snapshotSize());
+        game.writeSnapshot(out);
+        byte[] encoded = out.array();
+
+        Game.checkSnapshot(encoded, 1 << 24);
+
+        try {
+            Game.checkSnapshot(Arrays.copyOf(encoded, encoded.length - 1), 1 << 24);
+            fail();
+        }
+        catch(IllegalArgumentException expected) {
+        }
+
+        // a custom board far bigger than allowed
+        ByteBuffer huge = ByteBuffer.wrap(encoded.clone());
+        huge.put(1, (byte) -1);
+        huge.putInt(2, 1 << 30);
+        huge.putInt(6, 1 << 30);
+
+        try {
+            Game.checkSnapshot(huge.array(), 1 << 24);
+            fail();
+        }
+        catch(IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package josh.slackgames.minesweeper.objects;
+
+import josh.slackgames.minesweeper.MinesweeperService;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.junit.Assert.*;
+
+public class PackedBoardTest {
+
+    @Test
+    public void cellsAndTilesDecodeToTheSameBoard() {
+        Game game = new Game(MinesweeperService.Level.EXPERT, 3);
+        game.revealTile(5, 5);
+        game.flagTile(29, 15);
+        Board board = game.getBoard();
+
+        int[] expected = new int[30 * 16];
+        Arrays.fill(expected, PackedBoard.HIDDEN);
+        for(Tile tile : board.getTiles()) {
+            expected[tile.getY() * 30 + tile.getX()] = tile.getState();
+        }
+
+        PackedBoard cells = PackedBoard.cells(board);
+        byte[] nibbles = Base64.getDecoder().decode(cells.getData());
+        int[] fromCells = new int[expected.length];
+        for(int i = 0; i < fromCells.length; i++) {
+            fromCells[i] = (i & 1) == 0 ? (nibbles[i >> 1] >> 4) & 0x0F : nibbles[i >> 1] & 0x0F;
+        }
+        assertArrayEquals(expected, fromCells);
+
+        PackedBoard tiles = PackedBoard.tiles(30, 16, board.getTiles());
+        byte[] entries = Base64.getDecoder().decode(tiles.getData());
+        int[] fromTiles = new int[expected.length];
+        Arrays.fill(fromTiles, PackedBoard.HIDDEN);
+        int index = -1;
+        for(int p = 0; p < entries.length; ) {
+            int gap = 0;
+            for(int shift = 0; ; shift += 7) {
+                byte b = entries[p++];
+                gap |= (b & 0x7F) << shift;
+                if((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            index += gap;
+            fromTiles[index] = entries[p++];
+        }
+        assertArrayEquals(expected, fromTiles);
+    }
+}
@@ -0,0 +1,128 @@
+package josh.slackgames.slack;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.web.client.RestClientException;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SlackClientTest {
+
+    private HttpServer stub;
+    private SlackClient slack;
+    private final AtomicInteger calls = new AtomicInteger();
+    // statuses to answer with, in order, then 200
+    private final Queue<Integer> statuses = new ArrayDeque<>();
+
+
+    @Before
+    public void startStub() throws Exception {
+        stub = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        stub.createContext("/api", exchange -> {
+            calls.incrementAndGet();
+            Integer status;
+            synchronized (statuses) {
+                status = statuses.poll();
+            }
+
+            byte[] body = "{\"ok\":true}".getBytes(StandardCharsets.UTF_8);
+            if(status != null && status == 429) {
+                exchange.getResponseHeaders().add("Retry-After", "1");
+            }
+            exchange.sendResponseHeaders(status == null ? 200 : status, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        stub.start();
+
+        slack = new SlackClient(new SimpleMeterRegistry(), "http://localhost:" + stub.getAddress().getPort() + "/api",
+                4, 1000, 1000, 3, 10, 100);
+    }
+
+
+    @After
+    public void stop() throws Exception {
+        slack.shutdown();
+        stub.stop(0);
+    }
+
+
+    @Test
+    public void rateLimitedCallIsRetriedAfterRetryAfter() {
+        statuses.add(429);
+
+        long start = System.nanoTime();
+        ResponseEntity<String> response = slack.call("T1", "oauth.access", new LinkedMultiValueMap<>());
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(2, calls.get());
+        assertTrue(System.nanoTime() - start >= 1_000_000_000L);
+    }
+
+
+    @Test
+    public void serverErrorsAreNotRetried() {
+        // Slack may have acted on the call already, e.g. used up an OAuth code
+        statuses.add(503);
+
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, slack.call("T1", "oauth.access", new LinkedMultiValueMap<>()).getStatusCode());
+        assertEquals(1, calls.get());
+    }
+
+
+    @Test
+    public void failuresToConnectAreRetried() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        SlackClient unreachable = new SlackClient(registry, "http://localhost:" + closedPort() + "/api", 4, 1000, 1000, 2, 10, 100);
+
+        try {
+            unreachable.respond("http://localhost:" + closedPort() + "/hook", "{}");
+            fail();
+        }
+        catch(RestClientException expected) {
+        }
+        finally {
+            unreachable.shutdown();
+        }
+
+        assertEquals(2, registry.get("slack.api.retries").counter().count(), 0);
+    }
+
+
+    @Test
+    public void callsBeyondTheTierQueueFail() {
+        // chat.postMessage allows one a second, and this client won't queue for more than 100ms
+        slack.call("T1", "chat.postMessage", new LinkedMultiValueMap<>());
+
+        try {
+            slack.call("T1", "chat.postMessage", new LinkedMultiValueMap<>());
+            fail();
+        }
+        catch(RestClientException expected) {
+        }
+
+        // other workspaces have their own queue
+        slack.call("T2", "chat.postMessage", new LinkedMultiValueMap<>());
+        assertEquals(2, calls.get());
+    }
+
+
+    private static int closedPort() throws Exception {
+        try(ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package josh.slackgames.slack;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.util.StreamUtils;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = { "slack.commands.mode=async", "slack.commands.response-url-prefix=http://localhost:" })
+public class SlashCommandTests {
+
+    @Autowired
+    private TestRestTemplate rest;
+
+    private HttpServer stub;
+    private final BlockingQueue<String> replies = new LinkedBlockingQueue<>();
+
+
+    @Before
+    public void startStub() throws Exception {
+        // stands in for Slack's response_url
+        stub = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        stub.createContext("/reply", exchange -> {
+            replies.add(StreamUtils.copyToString(exchange.getRequestBody(), StandardCharsets.UTF_8));
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        stub.start();
+    }
+
+
+    @After
+    public void stopStub() {
+        stub.stop(0);
+    }
+
+
+    @Test
+    public void commandIsAcknowledgedAndAnsweredThroughResponseUrl() throws Exception {
+        MultiValueMap<String, String> command = new LinkedMultiValueMap<>();
+        command.add("channel_id", "C1");
+        command.add("user_id", "U1");
+        command.add("text", "");
+        command.add("response_url", "http://localhost:" + stub.getAddress().getPort() + "/reply");
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
+        ResponseEntity<String> ack = rest.postForEntity("/api/slack/games", new HttpEntity<>(command, headers), String.class);
+
+        assertEquals(HttpStatus.OK, ack.getStatusCode());
+        assertNull(ack.getBody());
+
+        String reply = replies.poll(10, TimeUnit.SECONDS);
+        assertNotNull(reply);
+        assertTrue(reply, reply.contains("Select a game to start:"));
+        assertTrue(reply, reply.contains("/play/minesweeper/C1/U1"));
+    }
+}
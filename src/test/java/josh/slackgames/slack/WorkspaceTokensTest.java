@@ -0,0 +1,97 @@
+package josh.slackgames.slack;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import josh.slackgames.slack.objects.Installation;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import static org.junit.Assert.*;
+
+public class WorkspaceTokensTest {
+
+    private static final String RESPONSE = "{\"ok\":true,\"access_token\":\"xoxp-1\",\"scope\":\"commands,bot\","
+            + "\"user_id\":\"U1\",\"team_name\":\"Team\",\"team_id\":\"T1\","
+            + "\"bot\":{\"bot_user_id\":\"B1\",\"bot_access_token\":\"xoxb-1\"}}";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    private WorkspaceTokens open(Path file) throws Exception {
+        WorkspaceTokens tokens = new WorkspaceTokens(new ObjectMapper(), file.toString());
+        tokens.load();
+        return tokens;
+    }
+
+
+    @Test
+    public void installParsesTokens() throws Exception {
+        WorkspaceTokens tokens = open(folder.getRoot().toPath().resolve("tokens.jsonl"));
+
+        Installation installation = tokens.install(RESPONSE);
+
+        assertEquals("T1", installation.getTeamId());
+        assertEquals("Team", installation.getTeamName());
+        assertEquals("U1", installation.getUserId());
+        assertEquals("xoxp-1", installation.getUserToken());
+        assertEquals("B1", installation.getBotUserId());
+        assertEquals("xoxb-1", tokens.botToken("T1"));
+        assertNull(tokens.botToken("T2"));
+    }
+
+
+    @Test
+    public void refusedCodesAreNotStored() throws Exception {
+        WorkspaceTokens tokens = open(folder.getRoot().toPath().resolve("tokens.jsonl"));
+
+        assertNull(tokens.install("{\"ok\":false,\"error\":\"invalid_code\"}"));
+        assertNull(tokens.install("not json"));
+        assertEquals(0, tokens.size());
+    }
+
+
+    @Test
+    public void installationsSurviveRestartAndNewestWins() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("tokens.jsonl");
+
+        WorkspaceTokens tokens = open(file);
+        tokens.install(RESPONSE);
+        tokens.install(RESPONSE.replace("xoxb-1", "xoxb-2"));
+        tokens.install(RESPONSE.replace("T1", "T2"));
+
+        // a crash mid-append leaves a partial last line
+        Files.write(file, "{\"teamId\":\"T3\",\"bot".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        WorkspaceTokens reloaded = open(file);
+        reloaded.install(RESPONSE.replace("T1", "T4"));
+
+        reloaded = open(file);
+
+        assertEquals(3, reloaded.size());
+        assertEquals("xoxb-1", reloaded.botToken("T4"));
+        assertEquals("xoxb-2", reloaded.botToken("T1"));
+        assertEquals("xoxb-1", reloaded.botToken("T2"));
+        assertNull(reloaded.get("T3"));
+    }
+
+
+    @Test
+    public void tokenFileIsReadableByItsOwnerOnly() throws Exception {
+        Assume.assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+
+        Path file = folder.getRoot().toPath().resolve("secrets").resolve("tokens.jsonl");
+        open(file).install(RESPONSE);
+
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file)));
+        assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file.getParent())));
+    }
+}